@@ -0,0 +1,74 @@
+package org.jvnet.hudson;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing recorded output of the commands that {@link Solaris} and {@link Aix} run,
+ * and {@link AbstractMemoryMonitorImpl#parse(String)} on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandOutputBenchmark {
+    private final Solaris solaris = new Solaris();
+    private final Aix aix = new Aix();
+
+    private String prtdiag;
+    private String solarisVmstat;
+    private String swap;
+    private String lsps;
+    private String aixVmstat;
+
+    @Setup
+    public void setUp() throws IOException {
+        prtdiag = Fixtures.text("solaris/prtdiag.txt");
+        solarisVmstat = Fixtures.text("solaris/vmstat.txt");
+        swap = Fixtures.text("solaris/swap-s.txt");
+        lsps = Fixtures.text("aix/lsps-s.txt");
+        aixVmstat = Fixtures.text("aix/vmstat.txt");
+    }
+
+    @Benchmark
+    public long solarisPrtdiag() throws IOException {
+        return solaris.parsePrtdiag(Fixtures.reader(prtdiag));
+    }
+
+    @Benchmark
+    public long solarisVmstat() throws IOException {
+        return solaris.parseVmstat(Fixtures.reader(solarisVmstat));
+    }
+
+    @Benchmark
+    public long[] solarisSwap() throws IOException {
+        return solaris.parseSwap(Fixtures.reader(swap));
+    }
+
+    @Benchmark
+    public long[] aixLsps() throws IOException {
+        return aix.parseLsps(Fixtures.reader(lsps));
+    }
+
+    @Benchmark
+    public long[] aixVmstat() throws IOException {
+        return aix.parseVmstat(Fixtures.reader(aixVmstat));
+    }
+
+    @Benchmark
+    public long parseToken() {
+        return solaris.parse("1.80G");
+    }
+}
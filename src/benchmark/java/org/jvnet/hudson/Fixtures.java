@@ -0,0 +1,40 @@
+package org.jvnet.hudson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recorded command output under <tt>src/test/resources</tt>.
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    static List<String> lines(String name) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = Fixtures.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("No such fixture: " + name);
+            }
+            BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    static String text(String name) throws IOException {
+        return String.join("\n", lines(name)) + "\n";
+    }
+
+    static BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+}
@@ -0,0 +1,48 @@
+package org.jvnet.hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Live sampling with the Linux backends. Needs to run on Linux.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LinuxBackendBenchmark {
+    private ProcMemInfo procMemInfo;
+    private SysInfo sysInfo;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (!new File("/proc/meminfo").exists()) {
+            throw new IOException("This benchmark needs /proc/meminfo");
+        }
+        procMemInfo = new ProcMemInfo();
+        sysInfo = new SysInfo();
+    }
+
+    @Benchmark
+    public MemoryUsage procMemInfo() throws IOException {
+        return procMemInfo.monitor();
+    }
+
+    @Benchmark
+    public MemoryUsage sysInfo() throws IOException {
+        return sysInfo.monitor();
+    }
+}
@@ -0,0 +1,68 @@
+package org.jvnet.hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What the first call to {@link MemoryMonitor#get()} costs, that is, finding the backend for this platform
+ * and taking the first sample with it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+public class ObtainBenchmark {
+    /**
+     * A {@link ProviderCache} in a temporary file that already knows the backend.
+     */
+    @State(Scope.Benchmark)
+    public static class Cached {
+        private File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            file = File.createTempFile("memory-monitor", ".properties");
+            System.setProperty(CACHE_FILE, file.getPath());
+            MemoryMonitor.obtain();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.setProperty(CACHE_FILE, "");
+            file.delete();
+        }
+    }
+
+    /**
+     * Detects the backend by trying them all, as on the first run on a machine.
+     */
+    @Benchmark
+    @Fork(value = 3, jvmArgsAppend = "-Dorg.jvnet.hudson.MemoryMonitor.cacheFile=")
+    public MemoryUsage coldPath() throws IOException {
+        return MemoryMonitor.obtain().monitor();
+    }
+
+    /**
+     * Uses the backend that was detected on an earlier run.
+     */
+    @Benchmark
+    @Fork(value = 3, jvmArgsAppend = "-Dorg.jvnet.hudson.MemoryMonitor.cacheFile=")
+    public MemoryUsage cachedPath(Cached cached) throws IOException {
+        return MemoryMonitor.obtain().monitor();
+    }
+
+    private static final String CACHE_FILE = "org.jvnet.hudson.MemoryMonitor.cacheFile";
+}
@@ -0,0 +1,46 @@
+package org.jvnet.hudson;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing one screen of <tt>top</tt> output, for each of the samples in the Javadoc of {@link Top}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TopBenchmark {
+    @Param({"solaris", "ubuntu", "debian", "unixtop", "freebsd", "macos-10.4", "macos-10.6"})
+    public String sample;
+
+    private List<String> lines;
+    private Top top;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> all = Fixtures.lines("top/" + sample + ".txt");
+        // Top only ever looks at the first 16 lines
+        lines = all.subList(0, Math.min(16, all.size()));
+        top = new Top();
+    }
+
+    @Benchmark
+    public MemoryUsage parse() throws IOException {
+        return top.parse(lines);
+    }
+}
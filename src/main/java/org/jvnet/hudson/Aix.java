@@ -25,8 +25,6 @@ package org.jvnet.hudson;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,8 +35,14 @@ import java.util.regex.Pattern;
  */
 public class Aix extends AbstractMemoryMonitorImpl {
 
+    private final MemoryMonitorStats.Call<MemoryUsage, IOException> collector = this::collect;
+
     @Override
     public MemoryUsage monitor() throws IOException {
+        return STATS.time(collector);
+    }
+
+    private MemoryUsage collect() throws IOException {
         long[] v = getSwap();
         long[] m = getMemUsed();
         return new MemoryUsage(m[0], m[1], v[0], v[1]);
@@ -52,34 +56,33 @@ public class Aix extends AbstractMemoryMonitorImpl {
      * Returns total/availablae.
      */
     private long[] getSwap() throws IOException {
+        return CommandRunner.run(STATS, this::parseLsps, "lsps", "-s");
+    }
+
+    /*package*/ long[] parseLsps(BufferedReader r) throws IOException {
         long[] v = new long[] {-1, -1};
-        Process proc = startProcess("lsps", "-s");
         /*
              $ lsps -s
         Total Paging Space   Percent Used
               45568MB              17%
 
                  */
-
-        try (BufferedReader r =
-                new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                Matcher m = SWAP.matcher(line);
-                if (m.find()) {
-                    long totalSwap = Long.parseLong(m.group(1));
-                    String unit = m.group(2);
-                    totalSwap = getSize(totalSwap, unit);
-                    long used = Long.parseLong(m.group(3));
-                    v[0] = totalSwap;
-                    if (used > 0) {
-                        v[1] = (totalSwap / 100) * (100 - used);
-                    }
-                    break;
+        String line;
+        while ((line = r.readLine()) != null) {
+            Matcher m = SWAP.matcher(line);
+            if (m.find()) {
+                long totalSwap = Long.parseLong(m.group(1));
+                String unit = m.group(2);
+                totalSwap = getSize(totalSwap, unit);
+                long used = Long.parseLong(m.group(3));
+                v[0] = totalSwap;
+                if (used > 0) {
+                    v[1] = (totalSwap / 100) * (100 - used);
                 }
+                break;
             }
-            return v;
         }
+        return v;
     }
 
     public long getSize(long totalSwap, String unit) {
@@ -92,8 +95,11 @@ public class Aix extends AbstractMemoryMonitorImpl {
     }
 
     private long[] getMemUsed() throws IOException {
+        return CommandRunner.run(STATS, this::parseVmstat, "vmstat");
+    }
+
+    /*package*/ long[] parseVmstat(BufferedReader r) throws IOException {
         long[] v = new long[] {-1, -1};
-        Process proc = startProcess("vmstat");
         /*
         $ vmstat
 
@@ -105,39 +111,47 @@ public class Aix extends AbstractMemoryMonitorImpl {
          1  1 4986615 96970   0   0   0   0   12   0  34 4619 4005  2  1 98  0
 
                  */
-        try (BufferedReader r =
-                new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                Matcher m = MEM_TOTAL.matcher(line);
-                if (m.find()) {
-                    long mem = Long.parseLong(m.group(1));
-                    String unit = m.group(2);
-                    mem = getSize(mem, unit);
-                    v[0] = mem;
-                    continue;
-                }
-                m = MEM_USED.matcher(line);
-                if (m.find()) {
-                    // long used = Long.parseLong(m.group(1));
-                    long free = Long.parseLong(m.group(2));
-                    v[1] = free * 4096; // v[0] == -1 ?  free * 4096 : ( v[0] - used*4096);
-                    break;
-                }
+        String line;
+        while ((line = r.readLine()) != null) {
+            Matcher m = MEM_TOTAL.matcher(line);
+            if (m.find()) {
+                long mem = Long.parseLong(m.group(1));
+                String unit = m.group(2);
+                mem = getSize(mem, unit);
+                v[0] = mem;
+                continue;
+            }
+            m = MEM_USED.matcher(line);
+            if (m.find()) {
+                // long used = Long.parseLong(m.group(1));
+                long free = Long.parseLong(m.group(2));
+                v[1] = free * 4096; // v[0] == -1 ?  free * 4096 : ( v[0] - used*4096);
+                break;
             }
-            return v;
         }
+        return v;
     }
 
-    private Process startProcess(String... cmd) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.redirectErrorStream(true);
-        Process proc = pb.start();
-        proc.getOutputStream().close();
-        return proc;
+    public static final class Provider extends MemoryMonitorProvider {
+        @Override
+        public int getPriority() {
+            return 400;
+        }
+
+        @Override
+        public boolean isApplicable() {
+            return "AIX".equals(System.getProperty("os.name"));
+        }
+
+        @Override
+        public MemoryMonitor create() {
+            return new Aix();
+        }
     }
 
     private static final Pattern SWAP = Pattern.compile("\\s+(\\d+)(MB|GB|KB)\\s+(\\d{1,2})%$");
     private static final Pattern MEM_USED = Pattern.compile("\\s+\\d+\\s+\\d+\\s+(\\d+)\\s+(\\d+)\\s+");
     private static final Pattern MEM_TOTAL = Pattern.compile("mem=(\\d+)(MB|GB)");
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(Aix.class);
 }
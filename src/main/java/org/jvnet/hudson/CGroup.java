@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link MemoryMonitor} for processes that run under a cgroup memory limit, such as
+ * containers and Kubernetes pods, where <tt>/proc/meminfo</tt> reports the host and not
+ * the memory that we can actually use.
+ *
+ * <p>
+ * Both the v1 (<tt>memory.limit_in_bytes</tt>) and the v2 (<tt>memory.max</tt>) layouts are supported.
+ * Page cache that the kernel can drop (<tt>inactive_file</tt>) is counted as available, like
+ * <tt>docker stats</tt> does. Figures are capped by what the host itself has left.
+ */
+final class CGroup extends MemoryMonitor {
+    private final boolean v2;
+    private final ProcFile limit;
+    private final ProcFile usage;
+    private final ProcFile stat;
+    /**
+     * Swap (v2) or memory+swap (v1) limit and usage. Null if swap accounting is off.
+     */
+    private final ProcFile swapLimit;
+
+    private final ProcFile swapUsage;
+    private final ProcMemInfo host;
+    private final MemoryMonitorStats.Call<MemoryUsage, IOException> collector = this::read;
+
+    private CGroup(boolean v2, File dir, ProcMemInfo host) {
+        this.v2 = v2;
+        this.host = host;
+        this.limit = new ProcFile(new File(dir, v2 ? "memory.max" : "memory.limit_in_bytes")).withStats(STATS);
+        this.usage = new ProcFile(new File(dir, v2 ? "memory.current" : "memory.usage_in_bytes")).withStats(STATS);
+        this.stat = new ProcFile(new File(dir, "memory.stat"), v2 ? "inactive_file" : "total_inactive_file")
+                .withStats(STATS);
+        this.swapLimit = optional(new File(dir, v2 ? "memory.swap.max" : "memory.memsw.limit_in_bytes"));
+        this.swapUsage = optional(new File(dir, v2 ? "memory.swap.current" : "memory.memsw.usage_in_bytes"));
+    }
+
+    private static ProcFile optional(File f) {
+        return f.exists() ? new ProcFile(f).withStats(STATS) : null;
+    }
+
+    @Override
+    public MemoryUsage monitor() throws IOException {
+        return STATS.time(collector);
+    }
+
+    private MemoryUsage read() throws IOException {
+        MemoryUsage h = host.read();
+
+        // each file is read once, so that memory and swap are worked out from the same figures
+        long memMax = limit.readValue();
+        long memUsed = usage.readValue();
+        long total = min(memMax, h.totalPhysicalMemory);
+        long[] inactive = new long[1];
+        stat.read(inactive);
+        long used = memUsed - Math.max(inactive[0], 0);
+        long available = min(clamp(total - used, total), h.availablePhysicalMemory);
+
+        long totalSwap = h.totalSwapSpace;
+        long availableSwap = h.availableSwapSpace;
+        if (swapLimit != null && swapUsage != null) {
+            long swapMax = swapLimit.readValue();
+            long swapUsed = swapUsage.readValue();
+            if (!v2) {
+                // v1 accounts memory+swap together
+                swapMax = swapMax == Long.MAX_VALUE || memMax == Long.MAX_VALUE ? Long.MAX_VALUE : swapMax - memMax;
+                swapUsed -= memUsed;
+            }
+            totalSwap = min(swapMax, h.totalSwapSpace);
+            availableSwap = min(clamp(totalSwap - swapUsed, totalSwap), h.availableSwapSpace);
+        }
+
+        return new MemoryUsage(total, available, totalSwap, availableSwap);
+    }
+
+    /**
+     * Completes inline, since reading the cgroup files doesn't block.
+     */
+    @Override
+    public CompletableFuture<MemoryUsage> monitorAsync(Executor executor) {
+        return monitorInline();
+    }
+
+    /**
+     * Minimum of two values, where -1 means "unknown" and doesn't win.
+     */
+    private static long min(long a, long b) {
+        if (a == -1) {
+            return b;
+        }
+        if (b == -1) {
+            return a;
+        }
+        return Math.min(a, b);
+    }
+
+    private static long clamp(long v, long max) {
+        return Math.max(0, Math.min(v, max));
+    }
+
+    /**
+     * Looks for the memory cgroup of the current process under <tt>/sys/fs/cgroup</tt>.
+     *
+     * @return
+     *      null unless the process runs under a memory limit that is lower than the physical memory of the host.
+     */
+    static CGroup detect() {
+        return detect(new File("/sys/fs/cgroup"), new File("/proc/self/cgroup"), new File("/proc/meminfo"));
+    }
+
+    /**
+     * @param root
+     *      Where the cgroup filesystem is mounted.
+     * @param self
+     *      <tt>/proc/self/cgroup</tt>, which tells us which cgroup we are in.
+     * @param meminfo
+     *      <tt>/proc/meminfo</tt> of the host.
+     */
+    static CGroup detect(File root, File self, File meminfo) {
+        try {
+            boolean v2 = new File(root, "cgroup.controllers").exists();
+            File mount = v2 ? root : new File(root, "memory");
+            String limitFile = v2 ? "memory.max" : "memory.limit_in_bytes";
+            if (!mount.isDirectory()) {
+                return null;
+            }
+
+            File dir = new File(mount, path(self, v2));
+            if (!dir.isDirectory()) {
+                // inside a container, /proc/self/cgroup may show the path on the host
+                // while the container only sees its own subtree mounted at the root
+                dir = mount;
+            }
+
+            ProcMemInfo host = new ProcMemInfo(meminfo, STATS);
+            long hostTotal = host.read().totalPhysicalMemory;
+
+            // the limit might be set on any ancestor, e.g. the pod rather than the container.
+            // use the tightest one, as that's the one that the OOM killer will enforce.
+            File best = null;
+            long bestLimit = hostTotal == -1 ? Long.MAX_VALUE : hostTotal;
+            for (File d = dir; d != null && d.getPath().startsWith(mount.getPath()); d = d.getParentFile()) {
+                File f = new File(d, limitFile);
+                if (f.exists()) {
+                    long l;
+                    try (ProcFile p = new ProcFile(f)) {
+                        l = p.readValue();
+                    }
+                    if (l < bestLimit) {
+                        best = d;
+                        bestLimit = l;
+                    }
+                }
+            }
+            if (best == null) {
+                LOGGER.fine("No cgroup memory limit in effect under " + dir);
+                return null;
+            }
+
+            LOGGER.fine("Using cgroup " + (v2 ? "v2" : "v1") + " memory limit of " + bestLimit + " in " + best);
+            return new CGroup(v2, best, host);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to look for cgroup memory limit", e);
+            return null;
+        }
+    }
+
+    /**
+     * Finds the path of our memory cgroup from <tt>/proc/self/cgroup</tt>, which looks like
+     * <tt>0::/some/path</tt> for v2 and <tt>4:memory:/some/path</tt> for v1.
+     */
+    /*package*/ static String path(File self, boolean v2) throws IOException {
+        try (BufferedReader r = Files.newBufferedReader(self.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] tokens = line.split(":", 3);
+                if (tokens.length != 3) {
+                    continue;
+                }
+                if (v2 ? tokens[0].equals("0") && tokens[1].isEmpty() : isMemoryController(tokens[1])) {
+                    return tokens[2];
+                }
+            }
+        }
+        return "/";
+    }
+
+    private static boolean isMemoryController(String controllers) {
+        for (String c : controllers.split(",")) {
+            if (c.equals("memory")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CGroup.class.getName());
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(CGroup.class);
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the external commands that {@link Top}, {@link Solaris} and {@link Aix} get their data from.
+ *
+ * <p>
+ * The output is parsed on a background thread while the caller waits for at most the given time.
+ * Whatever happens, the process is then killed if it's still running, and its exit is waited for
+ * in the background so that neither zombies nor pipes are left behind.
+ * A command that runs out of time results in {@link CommandTimeoutException}.
+ *
+ * <p>
+ * The background work runs on virtual threads when the JVM has them, otherwise on a pool of daemon threads.
+ */
+final class CommandRunner {
+    /**
+     * Parses the output of a command. Returning early is fine, as the process is killed afterward.
+     */
+    interface OutputParser<T> {
+        T parse(BufferedReader r) throws IOException;
+    }
+
+    private CommandRunner() {}
+
+    /**
+     * Runs a command with the default timeout of {@link #TIMEOUT}.
+     */
+    static <T> T run(OutputParser<T> parser, String... cmd) throws IOException {
+        return run(TIMEOUT, TimeUnit.MILLISECONDS, null, parser, cmd);
+    }
+
+    /**
+     * Runs a command with the default timeout of {@link #TIMEOUT}, counting the process and its output
+     * into the given stats.
+     */
+    static <T> T run(MemoryMonitorStats stats, OutputParser<T> parser, String... cmd) throws IOException {
+        return run(TIMEOUT, TimeUnit.MILLISECONDS, stats, parser, cmd);
+    }
+
+    static <T> T run(long timeout, TimeUnit unit, OutputParser<T> parser, String... cmd) throws IOException {
+        return run(timeout, unit, null, parser, cmd);
+    }
+
+    /**
+     * Runs a command, with stderr merged into stdout and stdin closed, and parses its output.
+     *
+     * @param stats
+     *      Where to count the process and the bytes of output that the parser read, if anywhere.
+     * @throws CommandTimeoutException
+     *      if the parser didn't finish in time.
+     * @throws InterruptedIOException
+     *      if the calling thread was interrupted while waiting. The interrupt flag is set again.
+     */
+    static <T> T run(long timeout, TimeUnit unit, MemoryMonitorStats stats, OutputParser<T> parser, String... cmd)
+            throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+        Process proc = pb.start();
+        if (stats != null) {
+            stats.spawned();
+        }
+        Future<T> f;
+        try {
+            proc.getOutputStream().close();
+            f = EXECUTOR.submit(() -> {
+                CountingInputStream in = new CountingInputStream(proc.getInputStream());
+                try {
+                    return parser.parse(new BufferedReader(new InputStreamReader(in, Charset.defaultCharset())));
+                } finally {
+                    if (stats != null) {
+                        stats.parsed(in.count);
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            reap(proc);
+            throw e;
+        }
+
+        try {
+            return f.get(timeout, unit);
+        } catch (TimeoutException e) {
+            throw new CommandTimeoutException(String.join(" ", cmd), timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException x = new InterruptedIOException("Interrupted while running " + String.join(" ", cmd));
+            x.initCause(e);
+            throw x;
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IOException(t);
+        } finally {
+            // killing the process unblocks the parser if it's still reading
+            reap(proc);
+            f.cancel(true);
+        }
+    }
+
+    /**
+     * Counts the bytes read through it. Only used from one thread.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Kills the process if it's still running, and waits for it to go away in the background.
+     */
+    private static void reap(Process proc) {
+        proc.destroy();
+        EXECUTOR.execute(() -> {
+            try {
+                if (!proc.waitFor(GRACE_PERIOD, TimeUnit.MILLISECONDS)) {
+                    LOGGER.fine(proc + " ignored SIGTERM, killing it");
+                    proc.destroyForcibly().waitFor();
+                }
+            } catch (InterruptedException e) {
+                proc.destroyForcibly();
+            } finally {
+                closeQuietly(proc);
+            }
+        });
+    }
+
+    private static void closeQuietly(Process proc) {
+        try {
+            proc.getInputStream().close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close the pipe of " + proc, e);
+        }
+    }
+
+    /**
+     * Uses virtual threads if available, which are cheap enough to block on each command,
+     * or else daemon threads that go away when idle.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not available in this JVM, or a preview feature that isn't enabled
+            LOGGER.log(Level.FINEST, "Virtual threads unavailable", e);
+        }
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "CommandRunner");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * How long in milliseconds a command may run by default.
+     */
+    /*package*/ static final long TIMEOUT = Long.getLong(MemoryMonitor.class.getName() + ".commandTimeout", 30000);
+
+    /**
+     * How long in milliseconds a process gets to exit after SIGTERM before it is killed for good.
+     */
+    private static final long GRACE_PERIOD = 5000;
+
+    private static final Logger LOGGER = Logger.getLogger(CommandRunner.class.getName());
+
+    // after LOGGER, which createExecutor() uses
+    /*package*/ static final ExecutorService EXECUTOR = createExecutor();
+}
@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when an external command that a {@link MemoryMonitor} relies on doesn't complete in time.
+ *
+ * <p>
+ * Unlike other {@link IOException}s from {@link MemoryMonitor#monitor()}, this doesn't mean
+ * that the backend doesn't work on this platform, so trying again later makes sense.
+ * The command has been killed by the time this is thrown.
+ */
+public class CommandTimeoutException extends IOException {
+    private final String command;
+    private final long timeoutMillis;
+
+    public CommandTimeoutException(String command, long timeout, TimeUnit unit) {
+        super("'" + command + "' did not complete in " + unit.toMillis(timeout) + "ms");
+        this.command = command;
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * The command line that timed out.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.IOException;
+
+/**
+ * {@link MemoryUsage} with the additional counters that Linux reports in <tt>/proc/meminfo</tt>. Immutable.
+ *
+ * <p>
+ * When the kernel reports <tt>MemAvailable</tt> (3.14 and later), {@link #availablePhysicalMemory}
+ * is that estimate of how much memory can be handed out without swapping, which counts reclaimable
+ * page cache and slab. On older kernels it falls back to <tt>MemFree</tt>.
+ * The raw <tt>MemFree</tt> is always in {@link #freePhysicalMemory}.
+ *
+ * <p>
+ * All values are in bytes, and -1 if unknown.
+ */
+public class ExtendedMemoryUsage extends MemoryUsage {
+    /**
+     * <tt>MemFree</tt>: physical memory that is not used for anything at all.
+     */
+    public final long freePhysicalMemory;
+
+    /**
+     * <tt>Buffers</tt>: block device buffers.
+     */
+    public final long buffers;
+
+    /**
+     * <tt>Cached</tt>: page cache, excluding swap cache.
+     */
+    public final long cached;
+
+    /**
+     * <tt>SwapCached</tt>: memory that was swapped out and back in, and is still in the swap file.
+     */
+    public final long swapCached;
+
+    /**
+     * <tt>Shmem</tt>: shared memory and tmpfs. Part of {@link #cached}, but cannot be dropped.
+     */
+    public final long shmem;
+
+    /**
+     * <tt>Slab</tt>: kernel data structure caches.
+     */
+    public final long slab;
+
+    /**
+     * <tt>SReclaimable</tt>: the part of {@link #slab} that can be reclaimed.
+     */
+    public final long slabReclaimable;
+
+    /**
+     * <tt>Dirty</tt>: memory waiting to be written back to disk.
+     */
+    public final long dirty;
+
+    /**
+     * <tt>Writeback</tt>: memory being written back to disk right now.
+     */
+    public final long writeback;
+
+    public ExtendedMemoryUsage(
+            long totalPhysicalMemory,
+            long availablePhysicalMemory,
+            long totalSwapSpace,
+            long availableSwapSpace,
+            long freePhysicalMemory,
+            long buffers,
+            long cached,
+            long swapCached,
+            long shmem,
+            long slab,
+            long slabReclaimable,
+            long dirty,
+            long writeback) {
+        super(totalPhysicalMemory, availablePhysicalMemory, totalSwapSpace, availableSwapSpace);
+        this.freePhysicalMemory = freePhysicalMemory;
+        this.buffers = buffers;
+        this.cached = cached;
+        this.swapCached = swapCached;
+        this.shmem = shmem;
+        this.slab = slab;
+        this.slabReclaimable = slabReclaimable;
+        this.dirty = dirty;
+        this.writeback = writeback;
+    }
+
+    /**
+     * @param v
+     *      Values in the order of {@link #FIELDS}.
+     */
+    ExtendedMemoryUsage(long[] v) throws IOException {
+        this(v[0], v[4] != -1 ? v[4] : v[1], v[2], v[3], v[1], v[5], v[6], v[7], v[8], v[9], v[10], v[11], v[12]);
+        if (!hasData(v)) {
+            throw new NoDataException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s  Free:%dMB Buffers:%dMB Cached:%dMB Shmem:%dMB Slab:%d/%dMB Dirty:%dMB Writeback:%dMB",
+                super.toString(),
+                toMB(freePhysicalMemory),
+                toMB(buffers),
+                toMB(cached),
+                toMB(shmem),
+                toMB(slabReclaimable),
+                toMB(slab),
+                toMB(dirty),
+                toMB(writeback));
+    }
+
+    /**
+     * Lines in <tt>/proc/meminfo</tt> that make up this object, in the order that
+     * {@link #ExtendedMemoryUsage(long[])} expects them.
+     */
+    /*package*/ static final String[] FIELDS = new String[] {
+        "MemTotal:",
+        "MemFree:",
+        "SwapTotal:",
+        "SwapFree:",
+        "MemAvailable:",
+        "Buffers:",
+        "Cached:",
+        "SwapCached:",
+        "Shmem:",
+        "Slab:",
+        "SReclaimable:",
+        "Dirty:",
+        "Writeback:"
+    };
+
+    private static final long serialVersionUID = 1L;
+}
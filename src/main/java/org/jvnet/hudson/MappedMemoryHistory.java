@@ -0,0 +1,361 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * History of {@link MemoryUsage} samples in a ring of fixed-size records in a memory-mapped file,
+ * so that it survives a restart of the JVM, such as one after an {@link OutOfMemoryError}.
+ *
+ * <pre>
+ * MappedMemoryHistory h = MappedMemoryHistory.open(new File(dir, "memory.hist"), 10080);
+ * sampler.addListener(h);
+ * </pre>
+ *
+ * <p>
+ * Recording a sample copies it into the mapping and involves no system call; the kernel writes the pages
+ * back in the background, and they make it to disk even if the JVM dies. Only one process can have the file
+ * open for writing, but any number of others can {@link #openReadOnly read} it at the same time.
+ *
+ * <p>
+ * Each record carries its sequence number and a CRC-32C, and is written seqlock-style: the sequence number
+ * is cleared first and stored last, so readers skip records that are being written, and a record that was
+ * torn by a crash fails the checksum and is ignored when the file is reopened.
+ * The checksum isn't meant to stand up to anyone tampering with the file.
+ *
+ * <p>
+ * File format, little-endian: a 64-byte header with the magic number, the version, the record size,
+ * the capacity and the sequence number of the newest record, followed by the records. Record {@code n}
+ * (counting from 1) lives in slot {@code n % capacity}, and consists of the sequence number, the timestamp,
+ * the 13 values of {@link ExtendedMemoryUsage} (only the first 4 being used for a plain {@link MemoryUsage},
+ * the rest -1), the flags, and the checksum of all that.
+ */
+public final class MappedMemoryHistory implements MemorySampler.Listener, Closeable {
+    private static final long MAGIC = 0x0054_5349_484D_454DL; // "MEMHIST\0" in little-endian ASCII
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 128;
+    private static final int VALUES = 13;
+
+    // header fields
+    private static final int VERSION_OFFSET = 8;
+    private static final int RECORD_SIZE_OFFSET = 12;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int NEWEST_OFFSET = 24;
+
+    // record fields
+    private static final int TIMESTAMP = 8;
+    private static final int FLAGS = 16 + VALUES * 8;
+    private static final int CHECKSUM = FLAGS + 4;
+
+    private static final int EXTENDED = 1;
+
+    /**
+     * Accesses the {@code long}s that other threads and processes synchronize on.
+     * Aligned, since both the mapping and the offsets are.
+     */
+    private static final VarHandle LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final boolean readOnly;
+    private final FileLock lock;
+
+    /**
+     * Sequence number of the next record. Only used by the writer, guarded by {@code this}.
+     */
+    private long next;
+
+    private boolean closed;
+
+    /**
+     * Record being written, so that its checksum can be computed before it goes out.
+     */
+    private final ByteBuffer scratch = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final CRC32C crc = new CRC32C();
+
+    private MappedMemoryHistory(File file, FileChannel channel, int capacity, boolean readOnly, FileLock lock)
+            throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.readOnly = readOnly;
+        this.lock = lock;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        this.buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, size);
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens the file for writing, creating it if necessary. Records that are in it already are kept.
+     *
+     * @param capacity
+     *      Number of samples to keep. Has to match that of an existing file.
+     * @throws IOException
+     *      if the file is not a history of this capacity, or another process has it open for writing.
+     */
+    public static MappedMemoryHistory open(File file, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        FileChannel c = FileChannel.open(
+                file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = c.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException(file + " is already open for writing");
+            }
+
+            boolean created = c.size() == 0;
+            if (!created) {
+                int existing = readHeader(c, file);
+                if (existing != capacity) {
+                    throw new IOException(file + " has a capacity of " + existing + ", not " + capacity);
+                }
+            }
+            MappedMemoryHistory h = new MappedMemoryHistory(file, c, capacity, false, lock);
+            if (created) {
+                h.buffer.putInt(VERSION_OFFSET, VERSION);
+                h.buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+                h.buffer.putInt(CAPACITY_OFFSET, capacity);
+                // last, so that a half-initialized file isn't taken for a history
+                h.buffer.putLong(0, MAGIC);
+            }
+            h.recover();
+            return h;
+        } catch (IOException | RuntimeException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the file for reading, which works while another process writes to it.
+     */
+    public static MappedMemoryHistory openReadOnly(File file) throws IOException {
+        FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new MappedMemoryHistory(file, c, readHeader(c, file), true, null);
+        } catch (IOException | RuntimeException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the header.
+     *
+     * @return
+     *      the capacity.
+     */
+    private static int readHeader(FileChannel c, File file) throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (h.hasRemaining() && c.read(h, h.position()) >= 0) {
+            // keep reading
+        }
+        if (h.hasRemaining() || h.getLong(0) != MAGIC) {
+            throw new IOException(file + " is not a memory history");
+        }
+        if (h.getInt(VERSION_OFFSET) != VERSION || h.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            throw new IOException(file + " is of an unsupported version " + h.getInt(VERSION_OFFSET));
+        }
+        int capacity = h.getInt(CAPACITY_OFFSET);
+        if (capacity <= 0 || c.size() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            throw new IOException(file + " is truncated");
+        }
+        return capacity;
+    }
+
+    /**
+     * Finds the newest intact record, after which the writing continues.
+     * Looks at every record rather than trusting the header, which may be behind after a crash.
+     */
+    private void recover() {
+        long newest = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long seq = readRecord(slot, -1);
+            newest = Math.max(newest, seq);
+        }
+        next = newest + 1;
+        LONG.setRelease(buffer, NEWEST_OFFSET, newest);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void onSample(MemorySampler.Sample sample) {
+        add(sample.timestamp, sample.usage);
+    }
+
+    /**
+     * Records a sample, overwriting the oldest one once the file is full.
+     *
+     * @throws IllegalStateException
+     *      if this was opened read-only, or has been closed.
+     */
+    public synchronized void add(long timestamp, MemoryUsage usage) {
+        if (readOnly || closed) {
+            throw new IllegalStateException(file + (closed ? " is closed" : " is open read-only"));
+        }
+        long seq = next++;
+        scratch.clear();
+        scratch.putLong(seq);
+        scratch.putLong(timestamp);
+        long[] v = MemoryUsageCodec.values(usage);
+        for (int i = 0; i < VALUES; i++) {
+            scratch.putLong(i < v.length ? v[i] : -1);
+        }
+        scratch.putInt(usage instanceof ExtendedMemoryUsage ? EXTENDED : 0);
+        crc.reset();
+        crc.update(scratch.array(), 0, CHECKSUM);
+        scratch.putInt((int) crc.getValue());
+
+        int off = offset(seq);
+        // readers that see 0 leave the record alone, and ones that saw the old number notice the change
+        LONG.setOpaque(buffer, off, 0L);
+        VarHandle.storeStoreFence();
+        buffer.put(off + TIMESTAMP, scratch.array(), TIMESTAMP, RECORD_SIZE - TIMESTAMP);
+        LONG.setRelease(buffer, off, seq);
+        LONG.setRelease(buffer, NEWEST_OFFSET, seq);
+    }
+
+    private int offset(long seq) {
+        return HEADER_SIZE + (int) (seq % capacity) * RECORD_SIZE;
+    }
+
+    /**
+     * Copies the record in the given slot into {@link #scratch} and checks it.
+     *
+     * @param expected
+     *      Sequence number that the record has to have, or -1 to accept any that belongs in the slot.
+     * @return
+     *      the sequence number of the record, or 0 if it's not intact.
+     */
+    private long readRecord(int slot, long expected) {
+        int off = HEADER_SIZE + slot * RECORD_SIZE;
+        long seq = (long) LONG.getAcquire(buffer, off);
+        if (seq <= 0 || (expected >= 0 ? seq != expected : seq % capacity != slot)) {
+            return 0;
+        }
+        byte[] b = scratch.array();
+        buffer.get(off + TIMESTAMP, b, TIMESTAMP, RECORD_SIZE - TIMESTAMP);
+        VarHandle.loadLoadFence();
+        if ((long) LONG.getOpaque(buffer, off) != seq) {
+            return 0; // overwritten while we were reading it
+        }
+        scratch.putLong(0, seq);
+        crc.reset();
+        crc.update(b, 0, CHECKSUM);
+        return scratch.getInt(CHECKSUM) == (int) crc.getValue() ? seq : 0;
+    }
+
+    /**
+     * Returns the samples that were taken in the time window {@code [from, to)}, oldest first.
+     * Records that are being overwritten as they are read are skipped.
+     */
+    public synchronized List<MemorySampler.Sample> getSamples(long from, long to) {
+        List<MemorySampler.Sample> r = new ArrayList<>();
+        long newest = (long) LONG.getAcquire(buffer, NEWEST_OFFSET);
+        for (long seq = Math.max(1, newest - capacity + 1); seq <= newest; seq++) {
+            if (readRecord((int) (seq % capacity), seq) == 0) {
+                continue;
+            }
+            long timestamp = scratch.getLong(TIMESTAMP);
+            if (timestamp < from || timestamp >= to) {
+                continue;
+            }
+            long[] v = new long[(scratch.getInt(FLAGS) & EXTENDED) != 0 ? VALUES : 4];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = scratch.getLong(16 + i * 8);
+            }
+            r.add(new MemorySampler.Sample(MemoryUsageCodec.create(v.length == VALUES, v), timestamp));
+        }
+        return r;
+    }
+
+    /**
+     * Returns all the samples, oldest first.
+     */
+    public List<MemorySampler.Sample> getSamples() {
+        return getSamples(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Asks the OS to write the records to disk now, which otherwise happens in its own time.
+     * Only needed to survive a crash of the OS itself, not just of the JVM.
+     */
+    public synchronized void force() {
+        if (!readOnly && !closed) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Closes the file. The mapping itself goes away when it gets garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
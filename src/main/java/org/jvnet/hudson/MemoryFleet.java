@@ -0,0 +1,509 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latest {@link MemoryUsage} of many nodes, such as all the agents of a controller, collected concurrently
+ * and indexed so that questions like "which nodes have the least memory left" are answered without
+ * looking at every node.
+ *
+ * <p>
+ * Each node has a {@link Source} that collects its data asynchronously, which can be a local
+ * {@link MemoryMonitor} through {@link Source#of(MemoryMonitor)}, or anything else that produces
+ * a {@link MemoryUsage}, such as a call to a remote agent. Data can also be pushed in with {@link #update}.
+ *
+ * <pre>
+ * MemoryFleet fleet = new MemoryFleet(30, TimeUnit.SECONDS);
+ * fleet.register("agent-1", () -&gt; callOnAgent(...));
+ * fleet.start(1, TimeUnit.MINUTES);
+ * ...
+ * for (MemoryFleet.Entry e : fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)) { ... }
+ * </pre>
+ *
+ * <p>
+ * For every {@link Metric}, node slots are kept sorted by value in an {@code int[]}, which an update
+ * moves one slot around in, so queries cost a binary search plus the size of the result.
+ * Values that are unknown (-1) aren't indexed, so such nodes don't show up in the queries of that metric.
+ *
+ * <p>
+ * This class is thread-safe. Queries run concurrently with each other, but not with updates.
+ */
+public final class MemoryFleet implements Closeable {
+    /**
+     * Collects the data of one node.
+     */
+    public interface Source {
+        /**
+         * Starts collecting the data. Should not block.
+         * The returned future gets cancelled if it doesn't complete in time.
+         */
+        CompletableFuture<MemoryUsage> collect();
+
+        /**
+         * Collects the data through {@link MemoryMonitor#monitorAsync()}.
+         */
+        static Source of(MemoryMonitor monitor) {
+            return monitor::monitorAsync;
+        }
+    }
+
+    /**
+     * What the nodes can be ranked by.
+     */
+    public enum Metric {
+        AVAILABLE_PHYSICAL_MEMORY {
+            @Override
+            long value(MemoryUsage u) {
+                return u.availablePhysicalMemory;
+            }
+        },
+        USED_PHYSICAL_MEMORY {
+            @Override
+            long value(MemoryUsage u) {
+                return used(u.totalPhysicalMemory, u.availablePhysicalMemory);
+            }
+        },
+        AVAILABLE_SWAP_SPACE {
+            @Override
+            long value(MemoryUsage u) {
+                return u.availableSwapSpace;
+            }
+        },
+        USED_SWAP_SPACE {
+            @Override
+            long value(MemoryUsage u) {
+                return used(u.totalSwapSpace, u.availableSwapSpace);
+            }
+        };
+
+        /**
+         * @return
+         *      -1 if unknown.
+         */
+        abstract long value(MemoryUsage u);
+
+        private static long used(long total, long available) {
+            return total < 0 || available < 0 ? -1 : Math.max(0, total - available);
+        }
+    }
+
+    /**
+     * Latest data of one node. Immutable.
+     */
+    public static final class Entry {
+        public final String node;
+        public final MemoryUsage usage;
+
+        /**
+         * When the data was received, as in {@link System#currentTimeMillis()}.
+         */
+        public final long timestamp;
+
+        Entry(String node, MemoryUsage usage, long timestamp) {
+            this.node = node;
+            this.usage = usage;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return node + ": " + usage + " @" + timestamp;
+        }
+    }
+
+    /**
+     * Slots of the nodes that have a value for one {@link Metric}, in the ascending order of that value.
+     */
+    private static final class Index {
+        /**
+         * Value by slot, or -1 if the slot isn't in {@link #order}.
+         */
+        long[] values;
+
+        int[] order;
+        int size;
+
+        Index(int capacity) {
+            values = new long[capacity];
+            Arrays.fill(values, -1);
+            order = new int[capacity];
+        }
+
+        void grow(int capacity) {
+            int old = values.length;
+            values = Arrays.copyOf(values, capacity);
+            Arrays.fill(values, old, capacity, -1);
+            order = Arrays.copyOf(order, capacity);
+        }
+
+        void set(int slot, long value) {
+            if (values[slot] == value) {
+                return;
+            }
+            remove(slot);
+            if (value < 0) {
+                return;
+            }
+            values[slot] = value;
+            int i = lowerBound(value, slot);
+            System.arraycopy(order, i, order, i + 1, size - i);
+            order[i] = slot;
+            size++;
+        }
+
+        void remove(int slot) {
+            long value = values[slot];
+            if (value < 0) {
+                return;
+            }
+            int i = lowerBound(value, slot);
+            System.arraycopy(order, i + 1, order, i, size - i - 1);
+            size--;
+            values[slot] = -1;
+        }
+
+        /**
+         * Position of the first slot that sorts at or after the given value and slot.
+         * Ties in value are broken by the slot number, so that every slot has a unique position.
+         */
+        int lowerBound(long value, int slot) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int s = order[mid];
+                long v = values[s];
+                if (v < value || (v == value && s < slot)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private final long timeout;
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+
+    // the rest is guarded by lock
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private Entry[] entries = new Entry[16];
+    private int slotCount;
+    private final Index[] indexes = new Index[Metric.values().length];
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param timeout
+     *      How long {@link #refresh()} waits for each node before it gives up on it.
+     */
+    public MemoryFleet(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        }
+        this.timeout = unit.toMillis(timeout);
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = new Index(entries.length);
+        }
+    }
+
+    /**
+     * Adds a node to be collected by {@link #refresh()}, or replaces its source.
+     */
+    public void register(String node, Source source) {
+        sources.put(node, source);
+    }
+
+    /**
+     * Forgets a node along with its data.
+     */
+    public void remove(String node) {
+        sources.remove(node);
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.remove(node);
+            if (slot != null) {
+                for (Index index : indexes) {
+                    index.remove(slot);
+                }
+                entries[slot] = null;
+                freeSlots.push(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the data of all the registered nodes concurrently.
+     * Nodes that fail or time out keep their previous data.
+     *
+     * @return
+     *      completes when all the nodes have either responded or given up on.
+     */
+    public CompletableFuture<Void> refresh() {
+        List<CompletableFuture<?>> all = new ArrayList<>(sources.size());
+        sources.forEach((node, source) -> all.add(refresh(node, source)));
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<?> refresh(String node, Source source) {
+        CompletableFuture<MemoryUsage> f;
+        try {
+            f = source.collect();
+        } catch (RuntimeException e) {
+            f = CompletableFuture.failedFuture(e);
+        }
+        if (!f.isDone()) {
+            // cancel() rather than orTimeout(), as the former also interrupts a MemoryMonitor that is stuck
+            CompletableFuture<MemoryUsage> pending = f;
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(() -> {
+                if (pending.cancel(true)) {
+                    LOGGER.fine(node + " did not respond in " + timeout + "ms");
+                }
+            });
+        }
+        return f.handle((usage, error) -> {
+            if (error != null) {
+                LOGGER.log(Level.FINE, "Failed to collect memory usage of " + node, error);
+            } else {
+                update(node, usage, source);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Starts calling {@link #refresh()} in the background. The first refresh happens right away.
+     * A refresh doesn't start until the previous one has finished.
+     * Calling this method more than once has no effect.
+     *
+     * @return this
+     */
+    public synchronized MemoryFleet start(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        if (executor == null) {
+            ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "MemoryFleet refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            e.setRemoveOnCancelPolicy(true);
+            e.scheduleWithFixedDelay(() -> refresh().join(), 0, interval, unit);
+            executor = e;
+        }
+        return this;
+    }
+
+    /**
+     * Stops refreshing in the background. The data collected so far stays.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Records the data of a node, such as one that pushes its data rather than being polled.
+     * The node doesn't have to be {@link #register registered}.
+     */
+    public void update(String node, MemoryUsage usage) {
+        update(node, usage, null);
+    }
+
+    /**
+     * @param expectedSource
+     *      If non-null, the data is only recorded if the node is still registered with this source,
+     *      so that a response that arrives after {@link #remove} or {@link #register} is dropped.
+     */
+    /*package*/ void update(String node, MemoryUsage usage, Source expectedSource) {
+        Entry e = new Entry(node, usage, System.currentTimeMillis());
+        lock.writeLock().lock();
+        try {
+            // checked under the lock, as remove() takes it after unregistering the node
+            if (expectedSource != null && sources.get(node) != expectedSource) {
+                return;
+            }
+            Integer slot = slots.get(node);
+            if (slot == null) {
+                slot = allocate();
+                slots.put(node, slot);
+            }
+            entries[slot] = e;
+            Metric[] metrics = Metric.values();
+            for (int i = 0; i < metrics.length; i++) {
+                indexes[i].set(slot, metrics[i].value(usage));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int allocate() {
+        Integer slot = freeSlots.poll();
+        if (slot != null) {
+            return slot;
+        }
+        if (slotCount == entries.length) {
+            int capacity = entries.length * 2;
+            entries = Arrays.copyOf(entries, capacity);
+            for (Index index : indexes) {
+                index.grow(capacity);
+            }
+        }
+        return slotCount++;
+    }
+
+    /**
+     * Number of nodes that have data.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return
+     *      null if there's no data for the node.
+     */
+    public Entry get(String node) {
+        lock.readLock().lock();
+        try {
+            Integer slot = slots.get(node);
+            return slot == null ? null : entries[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to {@code k} nodes with the lowest value, lowest first.
+     */
+    public List<Entry> lowest(Metric metric, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        lock.readLock().lock();
+        try {
+            Index index = indexes[metric.ordinal()];
+            int n = Math.min(k, index.size);
+            List<Entry> r = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                r.add(entries[index.order[i]]);
+            }
+            return r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to {@code k} nodes with the highest value, highest first.
+     */
+    public List<Entry> highest(Metric metric, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        lock.readLock().lock();
+        try {
+            Index index = indexes[metric.ordinal()];
+            int n = Math.min(k, index.size);
+            List<Entry> r = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                r.add(entries[index.order[index.size - 1 - i]]);
+            }
+            return r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * All the nodes whose value is less than {@code threshold}, lowest first.
+     */
+    public List<Entry> below(Metric metric, long threshold) {
+        lock.readLock().lock();
+        try {
+            Index index = indexes[metric.ordinal()];
+            int n = index.lowerBound(threshold, -1);
+            List<Entry> r = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                r.add(entries[index.order[i]]);
+            }
+            return r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * All the nodes whose value is greater than {@code threshold}, highest first.
+     */
+    public List<Entry> above(Metric metric, long threshold) {
+        lock.readLock().lock();
+        try {
+            Index index = indexes[metric.ordinal()];
+            int n = index.size - index.lowerBound(threshold, Integer.MAX_VALUE);
+            List<Entry> r = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                r.add(entries[index.order[index.size - 1 - i]]);
+            }
+            return r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryFleet.class.getName());
+}
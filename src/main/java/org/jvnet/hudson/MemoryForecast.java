@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.util.concurrent.TimeUnit;
+import org.jvnet.hudson.MemoryWatermarks.Resource;
+import org.jvnet.hudson.MemoryWatermarks.Watermark;
+
+/**
+ * Estimates how long until available physical memory or swap runs down to a floor, from the trend of
+ * recent samples, so that work can be steered away from a machine before it starts swapping rather than after.
+ *
+ * <pre>
+ * MemoryForecast forecast = new MemoryForecast(10, TimeUnit.MINUTES);
+ * forecast.setFloor(Resource.PHYSICAL_MEMORY, Watermark.percent(5));
+ * sampler.addListener(forecast);
+ * ...
+ * MemoryForecast.Estimate e = forecast.estimate(Resource.PHYSICAL_MEMORY);
+ * if (e.getSecondsToFloor() &lt; 600 &amp;&amp; e.getConfidence() &gt; 0.9) { ... }
+ * </pre>
+ *
+ * <p>
+ * The trend is an exponentially weighted least-squares line through the samples, where the weight of a sample
+ * halves every half-life. The weighted sums it needs are updated in place as each sample comes in, so both
+ * adding a sample and asking for an estimate take constant time, however many samples there have been.
+ * The confidence is how sure the fit is that the value is really going down rather than just fluctuating,
+ * based on the spread of the samples around the line.
+ *
+ * <p>
+ * This class is thread-safe.
+ */
+public final class MemoryForecast implements MemorySampler.Listener {
+    /**
+     * Trend of one {@link Resource} as of its latest sample. Immutable.
+     */
+    public static final class Estimate {
+        private final long timestamp;
+        private final double level;
+        private final double slope;
+        private final long floor;
+        private final long secondsToFloor;
+        private final double confidence;
+
+        Estimate(long timestamp, double level, double slope, long floor, long secondsToFloor, double confidence) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.slope = slope;
+            this.floor = floor;
+            this.secondsToFloor = secondsToFloor;
+            this.confidence = confidence;
+        }
+
+        /**
+         * When the latest sample was taken, which the estimate is as of.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Available bytes as of the latest sample, according to the trend line.
+         */
+        public double getLevel() {
+            return level;
+        }
+
+        /**
+         * Change in available bytes per second. Negative when memory is running down.
+         */
+        public double getSlope() {
+            return slope;
+        }
+
+        /**
+         * The floor in bytes, or -1 if that's a percentage of an unknown total.
+         */
+        public long getFloor() {
+            return floor;
+        }
+
+        /**
+         * Seconds from the latest sample until available memory reaches the floor, 0 if it already has,
+         * {@link Long#MAX_VALUE} if it isn't going down, or -1 if there isn't enough data to tell
+         * or there is none of the resource to begin with, such as swap on a node without any.
+         */
+        public long getSecondsToFloor() {
+            return secondsToFloor;
+        }
+
+        /**
+         * Between 0 and 1, how sure it is that available memory is really going down.
+         * Around 0.5 when it's flat, and 0 if there isn't enough data to tell.
+         */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "level=%.0f slope=%.1f/s floor=%d seconds=%d confidence=%.3f",
+                    level, slope, floor, secondsToFloor, confidence);
+        }
+    }
+
+    /**
+     * Weighted sums for the least-squares fit of one resource. Time is in seconds relative to the latest sample,
+     * and values are relative to the first one, which keeps the sums small enough not to lose precision.
+     */
+    private static final class Trend {
+        final Resource resource;
+        Watermark floor = Watermark.bytes(0);
+
+        long latest = Long.MIN_VALUE;
+        long total = -1;
+        double base;
+
+        double w; // sum of weights
+        double ww; // sum of squared weights
+        double t;
+        double y;
+        double tt;
+        double ty;
+        double yy;
+
+        Trend(Resource resource) {
+            this.resource = resource;
+        }
+
+        void add(long timestamp, long value, double decayPerSecond) {
+            if (latest == Long.MIN_VALUE) {
+                latest = timestamp;
+                base = value;
+            }
+            // a sample out of order is taken as if it came with the latest one
+            double dt = Math.max(0, timestamp - latest) / 1000.0;
+            if (dt > 0) {
+                // move the origin to the new sample
+                tt += -2 * dt * t + dt * dt * w;
+                ty -= dt * y;
+                t -= dt * w;
+                latest = timestamp;
+
+                double d = Math.exp(-decayPerSecond * dt);
+                w *= d;
+                ww *= d * d;
+                t *= d;
+                y *= d;
+                tt *= d;
+                ty *= d;
+                yy *= d;
+            }
+            // at t=0, so the sums with t don't change
+            double v = value - base;
+            w += 1;
+            ww += 1;
+            y += v;
+            yy += v * v;
+        }
+
+        Estimate estimate() {
+            long f = floor.resolve(total);
+            double n = w * w / ww; // effective number of samples
+            double st = tt - t * t / w;
+            if (latest == Long.MIN_VALUE || n < 3 || !(st > 0)) {
+                return new Estimate(latest == Long.MIN_VALUE ? -1 : latest, Double.NaN, Double.NaN, f, -1, 0);
+            }
+            double slope = (ty - t * y / w) / st;
+            double level = (y - slope * t) / w; // relative to base, at t=0
+
+            // weighted residual variance, and from that the standard error of the slope
+            double sse = yy - 2 * level * y - 2 * slope * ty + level * level * w + 2 * level * slope * t
+                    + slope * slope * tt;
+            double variance = Math.max(0, sse) / w * n / (n - 2);
+            double se = Math.sqrt(variance / (n * st / w));
+            double confidence = se > 0 ? phi(-slope / se) : slope < 0 ? 1 : slope > 0 ? 0 : 0.5;
+
+            level += base;
+            long seconds;
+            if (f < 0 || total == 0) {
+                // a node without any swap can't run out of it
+                seconds = -1;
+            } else if (level <= f) {
+                seconds = 0;
+            } else if (slope < 0) {
+                seconds = (long) Math.min(Long.MAX_VALUE - 1, (level - f) / -slope);
+            } else {
+                seconds = Long.MAX_VALUE;
+            }
+            return new Estimate(latest, level, slope, f, seconds, confidence);
+        }
+    }
+
+    private final double decayPerSecond;
+    private final Trend[] trends = new Trend[Resource.values().length];
+
+    /**
+     * @param halfLife
+     *      How quickly old samples stop mattering. A short one follows changes in the trend more quickly,
+     *      but is more easily thrown off by noise. Should span a good number of samples.
+     */
+    public MemoryForecast(long halfLife, TimeUnit unit) {
+        if (halfLife <= 0) {
+            throw new IllegalArgumentException("halfLife must be positive: " + halfLife);
+        }
+        decayPerSecond = Math.log(2) / (unit.toMillis(halfLife) / 1000.0);
+        for (Resource r : Resource.values()) {
+            trends[r.ordinal()] = new Trend(r);
+        }
+    }
+
+    /**
+     * Sets the level that {@link Estimate#getSecondsToFloor()} counts down to, which is 0 bytes by default.
+     */
+    public synchronized void setFloor(Resource resource, Watermark floor) {
+        trends[resource.ordinal()].floor = floor;
+    }
+
+    @Override
+    public void onSample(MemorySampler.Sample sample) {
+        add(sample.timestamp, sample.usage);
+    }
+
+    public synchronized void add(long timestamp, MemoryUsage usage) {
+        for (Trend trend : trends) {
+            long available = trend.resource.available(usage);
+            if (available >= 0) {
+                trend.total = trend.resource.total(usage);
+                trend.add(timestamp, available, decayPerSecond);
+            }
+        }
+    }
+
+    /**
+     * Estimates the trend of the given resource as of the latest sample.
+     */
+    public synchronized Estimate estimate(Resource resource) {
+        return trends[resource.ordinal()].estimate();
+    }
+
+    /**
+     * Cumulative distribution function of the standard normal distribution.
+     */
+    /*package*/ static double phi(double x) {
+        // Abramowitz and Stegun 7.1.26, accurate to 1.5e-7
+        double z = Math.abs(x) / Math.sqrt(2);
+        double k = 1 / (1 + 0.3275911 * z);
+        double erf = 1
+                - k
+                        * (0.254829592
+                                + k * (-0.284496736 + k * (1.421413741 + k * (-1.453152027 + k * 1.061405429))))
+                        * Math.exp(-z * z);
+        return x >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fixed-capacity history of {@link MemoryUsage} samples, oldest of which get overwritten once it fills up.
+ *
+ * <p>
+ * Timestamps and the four {@link MemoryUsage} values are kept in parallel {@code long[]} columns,
+ * so recording a sample allocates nothing, and readers walk the data through a {@link Visitor}
+ * without any objects being created either. Register it with {@link MemorySampler#addListener}
+ * to have it filled in the background.
+ *
+ * <p>
+ * Timestamps are expected to be non-decreasing. A sample older than the newest one (say, the clock
+ * was set back) is recorded with the timestamp of the newest one, so that time range queries keep working.
+ *
+ * <p>
+ * This class is thread-safe. Readers run concurrently with each other, but not with writers.
+ */
+public final class MemoryHistory implements MemorySampler.Listener {
+    /**
+     * Receives samples from {@link MemoryHistory#forEach}.
+     */
+    public interface Visitor {
+        void visit(
+                long timestamp,
+                long totalPhysicalMemory,
+                long availablePhysicalMemory,
+                long totalSwapSpace,
+                long availableSwapSpace);
+    }
+
+    private final long[] timestamps;
+    private final long[] totalPhysicalMemory;
+    private final long[] availablePhysicalMemory;
+    private final long[] totalSwapSpace;
+    private final long[] availableSwapSpace;
+
+    /**
+     * Index where the next sample goes.
+     */
+    private int head;
+
+    private int size;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public MemoryHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        timestamps = new long[capacity];
+        totalPhysicalMemory = new long[capacity];
+        availablePhysicalMemory = new long[capacity];
+        totalSwapSpace = new long[capacity];
+        availableSwapSpace = new long[capacity];
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onSample(MemorySampler.Sample sample) {
+        add(sample.timestamp, sample.usage);
+    }
+
+    public void add(long timestamp, MemoryUsage usage) {
+        add(
+                timestamp,
+                usage.totalPhysicalMemory,
+                usage.availablePhysicalMemory,
+                usage.totalSwapSpace,
+                usage.availableSwapSpace);
+    }
+
+    public void add(
+            long timestamp,
+            long totalPhysicalMemory,
+            long availablePhysicalMemory,
+            long totalSwapSpace,
+            long availableSwapSpace) {
+        lock.writeLock().lock();
+        try {
+            if (size > 0) {
+                timestamp = Math.max(timestamp, timestamps[physical(size - 1)]);
+            }
+            int i = head;
+            this.timestamps[i] = timestamp;
+            this.totalPhysicalMemory[i] = totalPhysicalMemory;
+            this.availablePhysicalMemory[i] = availablePhysicalMemory;
+            this.totalSwapSpace[i] = totalSwapSpace;
+            this.availableSwapSpace[i] = availableSwapSpace;
+            head = (i + 1) % capacity();
+            if (size < capacity()) {
+                size++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            head = 0;
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Timestamp of the oldest sample, or -1 if there's none.
+     */
+    public long getOldestTimestamp() {
+        lock.readLock().lock();
+        try {
+            return size == 0 ? -1 : timestamps[physical(0)];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Timestamp of the newest sample, or -1 if there's none.
+     */
+    public long getNewestTimestamp() {
+        lock.readLock().lock();
+        try {
+            return size == 0 ? -1 : timestamps[physical(size - 1)];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits all the samples, oldest first.
+     *
+     * @return
+     *      number of samples visited.
+     */
+    public int forEach(Visitor v) {
+        return forEach(Long.MIN_VALUE, Long.MAX_VALUE, v);
+    }
+
+    /**
+     * Visits the samples taken in the time window {@code [from, to)}, oldest first.
+     *
+     * @return
+     *      number of samples visited.
+     */
+    public int forEach(long from, long to, Visitor v) {
+        lock.readLock().lock();
+        try {
+            int end = lowerBound(to);
+            int n = 0;
+            for (int j = lowerBound(from); j < end; j++, n++) {
+                int i = physical(j);
+                v.visit(
+                        timestamps[i],
+                        totalPhysicalMemory[i],
+                        availablePhysicalMemory[i],
+                        totalSwapSpace[i],
+                        availableSwapSpace[i]);
+            }
+            return n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the samples taken in the time window {@code [from, to)}.
+     */
+    public int count(long from, long to) {
+        lock.readLock().lock();
+        try {
+            return Math.max(0, lowerBound(to) - lowerBound(from));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Logical index (0 being the oldest) of the first sample whose timestamp is {@code >= t}.
+     */
+    private int lowerBound(long t) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[physical(mid)] < t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Maps a logical index (0 being the oldest) to the index in the arrays.
+     */
+    private int physical(int logical) {
+        int i = head - size + logical;
+        return i < 0 ? i + capacity() : i;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the latest sample of a {@link MemorySampler} over HTTP at <tt>/metrics</tt>,
+ * for Prometheus to scrape.
+ *
+ * <pre>
+ * MemorySampler sampler = new MemorySampler(MemoryMonitor.get(), 15, TimeUnit.SECONDS).start();
+ * MemoryMetricsExporter exporter = new MemoryMetricsExporter(sampler, new InetSocketAddress(9100));
+ * </pre>
+ *
+ * <p>
+ * Scrapes never call the backend: they get whatever the sampler collected last, as rendered by
+ * {@link OpenMetricsWriter}. Until the first sample is in, they get a 503.
+ * Clients that don't ask for OpenMetrics get the same text labelled as the older Prometheus text format,
+ * which it is compatible with.
+ */
+public final class MemoryMetricsExporter implements Closeable {
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MemorySampler sampler;
+    private final OpenMetricsWriter writer;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts serving right away.
+     *
+     * @param address
+     *      Where to listen. Port 0 picks a free one, see {@link #getAddress()}.
+     */
+    public MemoryMetricsExporter(MemorySampler sampler, InetSocketAddress address) throws IOException {
+        this(sampler, new OpenMetricsWriter(), address);
+    }
+
+    public MemoryMetricsExporter(MemorySampler sampler, OpenMetricsWriter writer, InetSocketAddress address)
+            throws IOException {
+        this.sampler = sampler;
+        this.writer = writer;
+        this.server = HttpServer.create(address, 0);
+        // serving is just copying bytes, so one thread is plenty
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "MemoryMetricsExporter on " + address);
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    /**
+     * The address that the server actually listens on.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            MemorySampler.Sample sample = sampler.getLatest();
+            if (sample == null) {
+                byte[] msg = "No sample has been taken yet\n".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(503, head ? -1 : msg.length);
+                if (!head) {
+                    exchange.getResponseBody().write(msg);
+                }
+                return;
+            }
+
+            byte[] body = writer.render(sample);
+            exchange.getResponseHeaders()
+                    .set(
+                            "Content-Type",
+                            acceptsOpenMetrics(exchange) ? OpenMetricsWriter.CONTENT_TYPE : PROMETHEUS_CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, head ? -1 : body.length);
+            if (!head) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        }
+    }
+
+    private static boolean acceptsOpenMetrics(HttpExchange exchange) {
+        List<String> accept = exchange.getRequestHeaders().get("Accept");
+        if (accept != null) {
+            for (String a : accept) {
+                if (a.contains("application/openmetrics-text")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops serving. Doesn't stop the sampler.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -24,8 +24,18 @@
 package org.jvnet.hudson;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +56,100 @@ public abstract class MemoryMonitor {
      */
     public abstract MemoryUsage monitor() throws IOException;
 
+    /**
+     * Obtains the memory usage statistics without blocking the calling thread.
+     *
+     * <p>
+     * Cancelling the returned future (regardless of {@code mayInterruptIfRunning}) interrupts
+     * the thread that is computing it, which also kills any command that it runs.
+     * Implementations that don't block may complete the future right away on the calling thread.
+     *
+     * @param executor
+     *      Runs {@link #monitor()}.
+     */
+    public CompletableFuture<MemoryUsage> monitorAsync(Executor executor) {
+        AsyncMonitor f = new AsyncMonitor(this);
+        try {
+            executor.execute(f);
+        } catch (RejectedExecutionException e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    /**
+     * Obtains the memory usage statistics on a virtual thread, or on a daemon thread
+     * in JVMs without virtual threads.
+     *
+     * @see #monitorAsync(Executor)
+     */
+    public CompletableFuture<MemoryUsage> monitorAsync() {
+        return monitorAsync(CommandRunner.EXECUTOR);
+    }
+
+    /**
+     * For implementations of {@link #monitorAsync(Executor)} that are cheap enough to run on the calling thread.
+     */
+    protected final CompletableFuture<MemoryUsage> monitorInline() {
+        try {
+            return CompletableFuture.completedFuture(monitor());
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * {@link CompletableFuture} that interrupts {@link #monitor()} when cancelled,
+     * which {@link CompletableFuture#supplyAsync(java.util.function.Supplier, Executor)} doesn't do.
+     */
+    private static final class AsyncMonitor extends CompletableFuture<MemoryUsage> implements Runnable {
+        private final MemoryMonitor monitor;
+        /**
+         * The thread running {@link #monitor}, if any. Guarded by {@code this}.
+         */
+        private Thread thread;
+
+        AsyncMonitor(MemoryMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
+            try {
+                complete(monitor.monitor());
+            } catch (IOException | RuntimeException e) {
+                completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                }
+                if (isCancelled()) {
+                    // don't leak our interrupt into the next task of a pooled thread
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                synchronized (this) {
+                    if (thread != null) {
+                        thread.interrupt();
+                    }
+                }
+            }
+            return cancelled;
+        }
+    }
+
     /**
      * Obtains the {@link MemoryMonitor} implementation suitable
      * for the current platform.
@@ -54,42 +158,46 @@ public abstract class MemoryMonitor {
      *      if no applicable implementation is found.
      */
     public static MemoryMonitor get() throws IOException {
-        if (INSTANCE == null) {
-            INSTANCE = obtain();
+        MemoryMonitor m = INSTANCE;
+        if (m == null) {
+            // detection forks processes, so make sure that only one thread does it
+            synchronized (LOCK) {
+                m = INSTANCE;
+                if (m == null) {
+                    INSTANCE = m = obtain();
+                }
+            }
         }
-        return INSTANCE;
+        return m;
     }
 
-    private static MemoryMonitor obtain() throws IOException {
-        if (File.pathSeparatorChar == ';') {
-            return new Windows();
-        }
+    /*package*/ static MemoryMonitor obtain() throws IOException {
+        List<MemoryMonitorProvider> providers = MemoryMonitorProvider.all();
+        ProviderCache cache = ProviderCache.getDefault();
 
-        if (new File("/proc/meminfo").exists()) {
-            return new ProcMemInfo(); // Linux has this. Exactly since when, I don't know.
-        }
-        final String osName = System.getProperty("os.name");
-        if ("AIX".equals(osName)) {
-            Aix aix = new Aix();
-            aix.monitor();
-            return aix;
-        }
-        // is 'top' available? if so, use it
-        try {
-            Top top = new Top();
-            top.monitor();
-            return top;
-        } catch (Throwable t) {
-            // fall through next
+        // if we've been here before, skip the trial runs
+        String cached = cache.get();
+        if (cached != null) {
+            for (MemoryMonitorProvider p : providers) {
+                if (p.getClass().getName().equals(cached) && p.isApplicable()) {
+                    try {
+                        return p.create();
+                    } catch (Exception | LinkageError e) {
+                        LOGGER.log(Level.FINE, "Previously detected " + p + " no longer works", e);
+                    }
+                }
+            }
         }
 
-        // Solaris?
-        try {
-            Solaris solaris = new Solaris();
-            solaris.monitor();
-            return solaris;
-        } catch (Throwable t) {
-            // next
+        List<MemoryMonitorProvider> applicable = new ArrayList<>();
+        for (MemoryMonitorProvider p : providers) {
+            if (p.isApplicable()) {
+                applicable.add(p);
+            }
+        }
+        MemoryMonitor m = probe(applicable, PROBE_TIMEOUT, cache);
+        if (m != null) {
+            return m;
         }
 
         throw new IOException(String.format(
@@ -99,6 +207,57 @@ public abstract class MemoryMonitor {
                 System.getProperty("sun.arch.data.model")));
     }
 
+    /**
+     * Tries all the given providers at once, since each trial might fork a few processes that take a while.
+     * The first one in the list that produces data by the deadline wins, and the rest are cancelled.
+     *
+     * @param providers
+     *      Candidates, in the order of preference.
+     * @return
+     *      null if none of them worked.
+     */
+    /*package*/ static MemoryMonitor probe(
+            List<MemoryMonitorProvider> providers, long timeoutMillis, ProviderCache cache) {
+        if (providers.isEmpty()) {
+            return null;
+        }
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "MemoryMonitor probe");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<MemoryMonitor>> futures = new ArrayList<>();
+            for (MemoryMonitorProvider p : providers) {
+                futures.add(executor.submit(p::probe));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (int i = 0; i < providers.size(); i++) {
+                MemoryMonitorProvider p = providers.get(i);
+                try {
+                    // past the deadline, this still picks up the ones that have already finished
+                    MemoryMonitor m =
+                            futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    cache.put(p.getClass().getName());
+                    return m;
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.FINE, p + " failed", e.getCause());
+                    // fall through next
+                } catch (TimeoutException e) {
+                    LOGGER.fine(p + " did not respond in " + timeoutMillis + "ms");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return null;
+        } finally {
+            // interrupts the probes that are still running
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Main for test
      */
@@ -116,4 +275,13 @@ public abstract class MemoryMonitor {
     }
 
     private static volatile MemoryMonitor INSTANCE = null;
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * How long in milliseconds {@link #get()} waits for the backends to respond during the detection.
+     */
+    private static final long PROBE_TIMEOUT = Long.getLong(MemoryMonitor.class.getName() + ".probeTimeout", 10000);
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryMonitor.class.getName());
 }
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates a {@link MemoryMonitor} for the platforms that it supports.
+ *
+ * <p>
+ * Implementations are discovered with {@link ServiceLoader}, so a third party can add a backend
+ * by listing its provider in <tt>META-INF/services/org.jvnet.hudson.MemoryMonitorProvider</tt>.
+ * {@link MemoryMonitor#get()} goes through the applicable providers from the highest priority down,
+ * and uses the first one that produces data. Which one that was is remembered on disk,
+ * so that the next JVM on the same platform can skip the trial runs.
+ *
+ * <p>
+ * Implementations must be public and have a public no-argument constructor.
+ */
+public abstract class MemoryMonitorProvider {
+    /**
+     * Providers with a higher priority are tried first.
+     * The built-in ones range from {@link Solaris.Provider} at 100 to {@link Windows.Provider} at 600.
+     */
+    public abstract int getPriority();
+
+    /**
+     * Quickly checks if this provider could possibly work on this platform,
+     * for example by looking at system properties or files. Must not start any processes.
+     */
+    public abstract boolean isApplicable();
+
+    /**
+     * Creates the {@link MemoryMonitor}, without trying it out.
+     *
+     * @throws IOException
+     *      if it turns out that this provider is not usable after all.
+     */
+    public abstract MemoryMonitor create() throws IOException;
+
+    /**
+     * Creates the {@link MemoryMonitor} and makes sure that it works, which might take a while.
+     * By default this takes one sample.
+     */
+    public MemoryMonitor probe() throws IOException {
+        MemoryMonitor m = create();
+        m.monitor();
+        return m;
+    }
+
+    /**
+     * Checks if the given command can be found on <tt>PATH</tt>, without running it.
+     */
+    protected static boolean isOnPath(String command) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            if (!dir.isEmpty() && new File(dir, command).canExecute()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName();
+    }
+
+    /**
+     * Loads all the providers, highest priority first.
+     */
+    public static List<MemoryMonitorProvider> all() {
+        List<MemoryMonitorProvider> r = new ArrayList<>();
+        Iterator<MemoryMonitorProvider> itr = ServiceLoader.load(
+                        MemoryMonitorProvider.class, MemoryMonitorProvider.class.getClassLoader())
+                .iterator();
+        while (true) {
+            try {
+                if (!itr.hasNext()) {
+                    break;
+                }
+                r.add(itr.next());
+            } catch (ServiceConfigurationError e) {
+                LOGGER.log(Level.WARNING, "Failed to load a MemoryMonitorProvider", e);
+            }
+        }
+        r.sort(Comparator.comparingInt(MemoryMonitorProvider::getPriority).reversed());
+        return r;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryMonitorProvider.class.getName());
+}
@@ -0,0 +1,273 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What monitoring itself costs, per backend: how long {@link MemoryMonitor#monitor()} takes,
+ * how often it fails, how many processes it forks and how many bytes it parses.
+ *
+ * <pre>
+ * for (MemoryMonitorStats s : MemoryMonitorStats.all().values()) {
+ *     System.out.println(s);
+ * }
+ * </pre>
+ *
+ * <p>
+ * Counters are {@link LongAdder}s and the latency histogram has one power-of-two bucket per
+ * {@link AtomicLongArray} slot, so recording takes no locks and allocates nothing.
+ * Figures are cumulative since the JVM started, and are read without stopping the writers,
+ * so they may be slightly out of step with each other.
+ */
+public final class MemoryMonitorStats {
+    /**
+     * Collects the data, as {@link MemoryMonitor#monitor()} does.
+     */
+    /*package*/ interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private static final Map<Class<?>, MemoryMonitorStats> ALL = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder noData = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder processes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Bucket {@code i} counts the calls that took {@code [2^i, 2^(i+1))} nanoseconds.
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(64);
+
+    private MemoryMonitorStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Stats of the given backend, created on first use.
+     */
+    public static MemoryMonitorStats of(Class<? extends MemoryMonitor> backend) {
+        return ALL.computeIfAbsent(backend, c -> new MemoryMonitorStats(c.getSimpleName()));
+    }
+
+    /**
+     * Stats of all the backends that have been used, by name.
+     */
+    public static Map<String, MemoryMonitorStats> all() {
+        Map<String, MemoryMonitorStats> r = new TreeMap<>();
+        for (MemoryMonitorStats s : ALL.values()) {
+            r.put(s.name, s);
+        }
+        return Collections.unmodifiableMap(r);
+    }
+
+    /**
+     * Simple name of the backend class.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Makes the call on behalf of {@link MemoryMonitor#monitor()}, recording how long it took and whether it failed.
+     * Backends keep the {@link Call} in a field rather than passing a new lambda every time,
+     * as sampling is otherwise garbage-free.
+     */
+    /*package*/ <T, E extends Exception> T time(Call<T, E> call) throws E {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } catch (Exception e) {
+            failed(e);
+            throw e;
+        } finally {
+            record(start);
+        }
+    }
+
+    /*package*/ void record(long startNanos) {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        calls.increment();
+        totalNanos.add(nanos);
+        histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /*package*/ void failed(Exception e) {
+        if (e instanceof CommandTimeoutException) {
+            timeouts.increment();
+        } else if (e instanceof NoDataException) {
+            noData.increment();
+        }
+        failures.increment();
+    }
+
+    /*package*/ void fellBack() {
+        fallbacks.increment();
+    }
+
+    /*package*/ void spawned() {
+        processes.increment();
+    }
+
+    /*package*/ void parsed(long n) {
+        bytes.add(n);
+    }
+
+    /**
+     * Number of calls to {@link MemoryMonitor#monitor()}, whether they succeeded or not.
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * Number of calls that threw, including {@link #getTimeouts() timeouts} and {@link #getNoData() no data}.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Number of calls that failed with {@link CommandTimeoutException}.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Number of calls that failed with {@link NoDataException}.
+     */
+    public long getNoData() {
+        return noData.sum();
+    }
+
+    /**
+     * Number of times a backend got nothing out of one way of collecting the data and moved on to the next,
+     * such as {@link Top} trying another set of options.
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Number of child processes started.
+     */
+    public long getProcessesSpawned() {
+        return processes.sum();
+    }
+
+    /**
+     * Number of bytes read from files and command output.
+     */
+    public long getBytesParsed() {
+        return bytes.sum();
+    }
+
+    /**
+     * Mean time a call took, or 0 if there were none.
+     */
+    public long getMeanLatencyNanos() {
+        long n = calls.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Upper bound of the given quantile of the latency, accurate within a factor of 2.
+     *
+     * @param q
+     *      Between 0 and 1, such as 0.99.
+     * @return
+     *      0 if there were no calls.
+     */
+    public long getLatencyNanos(double q) {
+        if (!(q >= 0 && q <= 1)) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+        }
+        long[] h = getLatencyHistogram();
+        long n = 0;
+        for (long c : h) {
+            n += c;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < h.length; i++) {
+            seen += h[i];
+            if (seen >= rank) {
+                return Math.min((1L << (i + 1)) - 1, getMaxLatencyNanos());
+            }
+        }
+        return getMaxLatencyNanos();
+    }
+
+    /**
+     * Number of calls by latency, where element {@code i} counts the calls that took
+     * {@code [2^i, 2^(i+1))} nanoseconds.
+     */
+    public long[] getLatencyHistogram() {
+        long[] r = new long[histogram.length()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = histogram.get(i);
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: calls=%d failures=%d timeouts=%d noData=%d fallbacks=%d processes=%d bytes=%d"
+                        + " mean=%.3fms p99<=%.3fms max=%.3fms",
+                name,
+                getCalls(),
+                getFailures(),
+                getTimeouts(),
+                getNoData(),
+                getFallbacks(),
+                getProcessesSpawned(),
+                getBytesParsed(),
+                getMeanLatencyNanos() / 1e6,
+                getLatencyNanos(0.99) / 1e6,
+                getMaxLatencyNanos() / 1e6);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory pressure as reported by the Linux pressure stall information (PSI) in
+ * <tt>/proc/pressure/memory</tt> or the <tt>memory.pressure</tt> file of a cgroup. Immutable.
+ *
+ * <p>
+ * The "some" figures are the share of time in which at least one task was stalled waiting for memory,
+ * and the "full" figures the share of time in which all non-idle tasks were, so nothing got done at all.
+ * Averages are percentages over the last 10, 60 and 300 seconds, and totals are cumulative stall
+ * time in microseconds. Values are -1 if unknown.
+ */
+public class MemoryPressure implements Serializable {
+    public final double someAvg10;
+    public final double someAvg60;
+    public final double someAvg300;
+    public final long someTotal;
+
+    public final double fullAvg10;
+    public final double fullAvg60;
+    public final double fullAvg300;
+    public final long fullTotal;
+
+    public MemoryPressure(
+            double someAvg10,
+            double someAvg60,
+            double someAvg300,
+            long someTotal,
+            double fullAvg10,
+            double fullAvg60,
+            double fullAvg300,
+            long fullTotal) {
+        this.someAvg10 = someAvg10;
+        this.someAvg60 = someAvg60;
+        this.someAvg300 = someAvg300;
+        this.someTotal = someTotal;
+        this.fullAvg10 = fullAvg10;
+        this.fullAvg60 = fullAvg60;
+        this.fullAvg300 = fullAvg300;
+        this.fullTotal = fullTotal;
+    }
+
+    /**
+     * Cumulative stall time in microseconds of either kind.
+     */
+    public long getTotal(boolean full) {
+        return full ? fullTotal : someTotal;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "Some:%.2f/%.2f/%.2f%% (%dms)  Full:%.2f/%.2f/%.2f%% (%dms)",
+                someAvg10,
+                someAvg60,
+                someAvg300,
+                someTotal / 1000,
+                fullAvg10,
+                fullAvg60,
+                fullAvg300,
+                fullTotal / 1000);
+    }
+
+    /**
+     * Parses the content of a PSI file, which looks like this:
+     *
+     * <pre>
+     * some avg10=0.12 avg60=0.05 avg300=0.00 total=1234567
+     * full avg10=0.00 avg60=0.00 avg300=0.00 total=345678
+     * </pre>
+     */
+    /*package*/ static MemoryPressure parse(byte[] buf, int len) throws IOException {
+        // avg10, avg60, avg300 for "some" then "full"
+        double[] avg = {-1, -1, -1, -1, -1, -1};
+        long[] total = {-1, -1};
+        boolean found = false;
+        int p = 0;
+        while (p < len) {
+            int eol = indexOf(buf, p, len, (byte) '\n');
+            int sp = indexOf(buf, p, eol, (byte) ' ');
+            int kind = equals(buf, p, sp, "some") ? 0 : equals(buf, p, sp, "full") ? 1 : -1;
+            if (kind >= 0) {
+                found = true;
+                // "avg10=0.12 avg60=0.05 avg300=0.00 total=1234567"
+                for (int f = sp + 1; f < eol; ) {
+                    int end = indexOf(buf, f, eol, (byte) ' ');
+                    int eq = indexOf(buf, f, end, (byte) '=');
+                    if (equals(buf, f, eq, "avg10")) {
+                        avg[kind * 3] = parseNumber(buf, eq + 1, end);
+                    } else if (equals(buf, f, eq, "avg60")) {
+                        avg[kind * 3 + 1] = parseNumber(buf, eq + 1, end);
+                    } else if (equals(buf, f, eq, "avg300")) {
+                        avg[kind * 3 + 2] = parseNumber(buf, eq + 1, end);
+                    } else if (equals(buf, f, eq, "total")) {
+                        total[kind] = (long) parseNumber(buf, eq + 1, end);
+                    }
+                    f = end + 1;
+                }
+            }
+            p = eol + 1;
+        }
+        if (!found) {
+            throw new IOException(
+                    "Unexpected pressure data: " + new String(buf, 0, len, StandardCharsets.US_ASCII).trim());
+        }
+        return new MemoryPressure(avg[0], avg[1], avg[2], total[0], avg[3], avg[4], avg[5], total[1]);
+    }
+
+    /**
+     * Position of {@code b} in {@code [s,e)}, or {@code e}.
+     */
+    private static int indexOf(byte[] buf, int s, int e, byte b) {
+        while (s < e && buf[s] != b) {
+            s++;
+        }
+        return s;
+    }
+
+    /**
+     * Checks if {@code [s,e)} is the given ASCII string.
+     */
+    private static boolean equals(byte[] buf, int s, int e, String str) {
+        if (e - s != str.length()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (buf[s + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses "123" or "0.12" in {@code [s,e)}. Totals fit in a double exactly for the next couple of centuries.
+     */
+    private static double parseNumber(byte[] buf, int s, int e) throws IOException {
+        long whole = 0;
+        long frac = 0;
+        long scale = 1;
+        boolean dot = false;
+        int digits = 0;
+        for (int p = s; p < e; p++) {
+            byte b = buf[p];
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (dot) {
+                    frac = frac * 10 + (b - '0');
+                    scale *= 10;
+                } else {
+                    whole = whole * 10 + (b - '0');
+                }
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                digits = 0;
+                break;
+            }
+        }
+        if (digits == 0) {
+            throw new IOException(
+                    "Failed to parse '" + new String(buf, s, e - s, StandardCharsets.US_ASCII) + "' as a number");
+        }
+        return dot ? whole + (double) frac / scale : whole;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,442 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the Linux pressure stall information (PSI) for memory, and tells listeners when
+ * tasks have been stalled on memory for longer than a threshold, without sampling periodically.
+ *
+ * <p>
+ * Each {@link #watch(boolean, long, long, TimeUnit, Listener) watch} arms a kernel trigger
+ * on the PSI file, which a single daemon thread waits on with <tt>poll(2)</tt>, so nothing
+ * happens until the kernel sees the threshold crossed. Where triggers can't be armed
+ * (kernels before 5.2, or unprivileged processes on the system-wide file with a window
+ * that's not a multiple of 2 seconds), the file is instead read once per window and the
+ * stall time is compared against the threshold, which is cheap but coarser.
+ *
+ * <pre>
+ * MemoryPressureMonitor m = MemoryPressureMonitor.detect();
+ * m.watch(false, 150, 1000, TimeUnit.MILLISECONDS, p -&gt; LOGGER.warning("Memory pressure: " + p));
+ * </pre>
+ */
+public final class MemoryPressureMonitor implements Closeable {
+    /**
+     * Receives the pressure right after the threshold of a watch was crossed, on the monitor thread.
+     * Implementations should return quickly.
+     */
+    public interface Listener {
+        void onPressure(MemoryPressure pressure);
+    }
+
+    /**
+     * A stall threshold that's being watched. Close it to stop the notifications.
+     */
+    public final class Watch implements Closeable {
+        private final boolean full;
+        private final long stallMicros;
+        private final long windowMicros;
+        private final Listener listener;
+
+        /**
+         * File descriptor with the kernel trigger, or -1 if we read the file instead.
+         */
+        private volatile int fd;
+
+        // only used by the monitor thread when reading the file
+        private long nextCheck;
+        private long lastTotal = -1;
+
+        private volatile boolean closed;
+
+        private Watch(boolean full, long stallMicros, long windowMicros, Listener listener) {
+            this.full = full;
+            this.stallMicros = stallMicros;
+            this.windowMicros = windowMicros;
+            this.listener = listener;
+            this.fd = arm();
+            this.nextCheck = System.nanoTime();
+        }
+
+        /**
+         * True if the kernel notifies us, false if the file is read periodically.
+         */
+        public boolean isEventDriven() {
+            return fd >= 0;
+        }
+
+        /**
+         * Stops the notifications. One that's already on its way may still arrive.
+         */
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        private int arm() {
+            if (!triggers) {
+                return -1;
+            }
+            int fd = -1;
+            try {
+                LibC libc = LibC.INSTANCE;
+                fd = libc.open(file.getPath(), O_RDWR);
+                byte[] trigger = ((full ? "full " : "some ") + stallMicros + " " + windowMicros + "\0")
+                        .getBytes(StandardCharsets.US_ASCII);
+                libc.write(fd, trigger, new NativeLong(trigger.length));
+                return fd;
+            } catch (LastErrorException | LinkageError e) {
+                LOGGER.log(Level.FINE, "Cannot arm a PSI trigger on " + file + ", will read it instead", e);
+                closeQuietly(fd);
+                return -1;
+            }
+        }
+
+        private void check(long now) {
+            nextCheck = now + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+            try {
+                MemoryPressure p = read();
+                long total = p.getTotal(full);
+                boolean crossed = lastTotal >= 0 && total - lastTotal >= stallMicros;
+                lastTotal = total;
+                if (crossed) {
+                    fire(p);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read " + file, e);
+            }
+            checked.accept(this);
+        }
+
+        private void fire(MemoryPressure p) {
+            if (closed) {
+                return;
+            }
+            try {
+                listener.onPressure(p);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Listener " + listener + " failed", e);
+            }
+        }
+    }
+
+    private final File file;
+    private final ProcFile reader;
+    private final boolean triggers;
+    private final Consumer<Watch> checked;
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+
+    private Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * What {@link #poll} passes to the kernel. Only used by the monitor thread.
+     */
+    private pollfd[] fds;
+
+    /**
+     * @param file
+     *      <tt>/proc/pressure/memory</tt> or the <tt>memory.pressure</tt> file of a cgroup v2.
+     */
+    public MemoryPressureMonitor(File file) {
+        this(file, true, w -> {});
+    }
+
+    /**
+     * @param triggers
+     *      False to always read the file, even if kernel triggers are available.
+     * @param checked
+     *      Called on the monitor thread each time a watch has read the file, after notifying its listener.
+     */
+    /*package*/ MemoryPressureMonitor(File file, boolean triggers, Consumer<Watch> checked) {
+        this.file = file;
+        this.reader = new ProcFile(file);
+        this.triggers = triggers;
+        this.checked = checked;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the current pressure. This is cheap, and doesn't involve the monitor thread.
+     */
+    public MemoryPressure read() throws IOException {
+        return reader.read(MemoryPressure::parse);
+    }
+
+    /**
+     * Starts watching for memory stalls of at least the given length within a time window.
+     * The listener is notified at most once per window.
+     *
+     * @param full
+     *      Whether to watch the time when all tasks were stalled, as opposed to at least one.
+     * @param stall
+     *      Threshold of the stall time in the window.
+     * @param window
+     *      Between 500ms and 10s, as the kernel requires.
+     */
+    public Watch watch(boolean full, long stall, long window, TimeUnit unit, Listener listener) {
+        long stallMicros = unit.toMicros(stall);
+        long windowMicros = unit.toMicros(window);
+        if (windowMicros < 500000 || windowMicros > 10000000) {
+            throw new IllegalArgumentException("window must be between 500ms and 10s: " + windowMicros + "us");
+        }
+        if (stallMicros <= 0 || stallMicros > windowMicros) {
+            throw new IllegalArgumentException("stall must be positive and within the window: " + stallMicros + "us");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Already closed");
+            }
+            Watch w = new Watch(full, stallMicros, windowMicros, listener);
+            watches.add(w);
+            if (thread == null) {
+                thread = new Thread(this::run, "MemoryPressureMonitor for " + file);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return w;
+        }
+    }
+
+    /**
+     * Stops all the watches, and waits for the monitor thread to finish unless called from a listener.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+        }
+        if (t == null) {
+            reader.close();
+            return;
+        }
+        // the monitor thread closes the reader and the triggers itself, as it may be using them right now
+        t.interrupt();
+        if (t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + t.getName());
+            }
+        }
+    }
+
+    private void run() {
+        List<Watch> triggered = new ArrayList<>();
+        try {
+            while (!closed) {
+                triggered.clear();
+                long now = System.nanoTime();
+                long timeout = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT);
+                for (Watch w : watches) {
+                    if (w.closed) {
+                        watches.remove(w);
+                        closeQuietly(w.fd);
+                    } else if (w.isEventDriven()) {
+                        triggered.add(w);
+                    } else {
+                        timeout = Math.min(timeout, Math.max(0, w.nextCheck - now));
+                    }
+                }
+
+                if (triggered.isEmpty()) {
+                    LockSupport.parkNanos(timeout);
+                } else {
+                    poll(triggered, timeout);
+                }
+
+                now = System.nanoTime();
+                for (Watch w : watches) {
+                    if (!w.isEventDriven() && now - w.nextCheck >= 0) {
+                        w.check(now);
+                    }
+                }
+            }
+        } finally {
+            for (Watch w : watches) {
+                closeQuietly(w.fd);
+            }
+            watches.clear();
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the kernel to signal any of the triggers.
+     */
+    private void poll(List<Watch> triggered, long timeoutNanos) {
+        if (fds == null || fds.length != triggered.size()) {
+            // native memory, so only allocated when the number of triggers changes
+            fds = (pollfd[]) new pollfd().toArray(triggered.size());
+        }
+        for (int i = 0; i < fds.length; i++) {
+            fds[i].fd = triggered.get(i).fd;
+            fds[i].events = POLLPRI;
+        }
+        int n;
+        try {
+            n = LibC.INSTANCE.poll(fds, fds.length, (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos + 999999));
+        } catch (LastErrorException e) {
+            // EINTR, most likely
+            LOGGER.log(Level.FINEST, "poll failed", e);
+            return;
+        }
+        for (int i = 0; i < fds.length && n > 0; i++) {
+            Watch w = triggered.get(i);
+            short revents = fds[i].revents;
+            if ((revents & ~POLLPRI) != 0) {
+                // the cgroup went away, or the trigger was otherwise invalidated
+                LOGGER.fine("PSI trigger on " + file + " failed, will read it instead");
+                w.fd = -1;
+                closeQuietly(fds[i].fd);
+            } else if ((revents & POLLPRI) != 0) {
+                try {
+                    w.fire(read());
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to read " + file, e);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(int fd) {
+        if (fd >= 0) {
+            try {
+                LibC.INSTANCE.close(fd);
+            } catch (LastErrorException e) {
+                LOGGER.log(Level.FINE, "Failed to close " + fd, e);
+            }
+        }
+    }
+
+    /**
+     * Finds the PSI file that best describes the memory available to this process:
+     * that of our cgroup on cgroup v2, as that's where the limit is, otherwise the system-wide one.
+     *
+     * @return
+     *      null if PSI isn't available, such as on kernels before 4.20 or when booted with <tt>psi=0</tt>.
+     */
+    public static MemoryPressureMonitor detect() {
+        List<File> candidates = new ArrayList<>();
+        File root = new File("/sys/fs/cgroup");
+        if (new File(root, "cgroup.controllers").exists()) {
+            try {
+                File cgroup = new File(root, CGroup.path(new File("/proc/self/cgroup"), true));
+                candidates.add(new File(cgroup, "memory.pressure"));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to find our cgroup", e);
+            }
+        }
+        candidates.add(new File("/proc/pressure/memory"));
+
+        for (File f : candidates) {
+            if (!f.exists()) {
+                continue;
+            }
+            MemoryPressureMonitor m = new MemoryPressureMonitor(f);
+            try {
+                m.read();
+                return m;
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "PSI unavailable in " + f, e);
+                try {
+                    m.close();
+                } catch (IOException x) {
+                    e.addSuppressed(x);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The parts of libc that we need. JNA requires that this be public.
+     */
+    public interface LibC extends Library {
+        int open(String path, int flags) throws LastErrorException;
+
+        NativeLong write(int fd, byte[] buf, NativeLong count) throws LastErrorException;
+
+        int poll(pollfd[] fds, int nfds, int timeout) throws LastErrorException;
+
+        int close(int fd) throws LastErrorException;
+
+        LibC INSTANCE = Native.load("c", LibC.class);
+    }
+
+    @SuppressFBWarnings(
+            value = {"URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD", "UUF_UNUSED_PUBLIC_OR_PROTECTED_FIELD"},
+            justification = "JNA Data Structure")
+    public static final class pollfd extends Structure {
+        public int fd;
+        public short events;
+        public short revents;
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("fd", "events", "revents");
+        }
+    }
+
+    private static final int O_RDWR = 2;
+    private static final short POLLPRI = 0x2;
+
+    /**
+     * Longest time in milliseconds that the monitor thread blocks, which bounds how long it takes
+     * to notice new and closed watches.
+     */
+    private static final long MAX_WAIT = 500;
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryPressureMonitor.class.getName());
+}
@@ -0,0 +1,491 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Rolls {@link MemoryUsage} samples up into 1-minute, 1-hour and 1-day buckets, each of which keeps
+ * the minimum, maximum, mean and approximate quantiles of every field, so that days of history fit in
+ * a fixed amount of memory without averaging away the dips that lead up to running out of memory.
+ *
+ * <pre>
+ * MemoryRollup rollup = new MemoryRollup(1440, 168, 90);
+ * sampler.addListener(rollup);
+ * ...
+ * for (MemoryRollup.Bucket b : rollup.getBuckets(Resolution.HOUR, from, to)) {
+ *     long worst = b.get(Field.AVAILABLE_PHYSICAL_MEMORY).getMin();
+ * }
+ * </pre>
+ *
+ * <p>
+ * Each sample goes straight into the current bucket of every resolution, which is a constant amount of work
+ * that allocates nothing. Buckets live in one ring per resolution, kept in flat arrays.
+ * Quantiles come from a sketch of {@value #BINS} logarithmic bins per field. The bins start out 2% apart,
+ * which gives quantiles within about 1%. When the values of a bucket span more than the bins can cover, pairs
+ * of bins are merged, which doubles the error each time; minimum, maximum and mean are always exact.
+ * With {@code 1440, 168, 90} buckets, this takes about 2MB.
+ *
+ * <p>
+ * Buckets are aligned to UTC. Samples older than the bucket in their slot are ignored, so anything older than
+ * the retention of a resolution only makes it into the coarser ones. Unknown (-1) values are left out.
+ *
+ * <p>
+ * This class is thread-safe. Readers run concurrently with each other, but not with writers.
+ */
+public final class MemoryRollup implements MemorySampler.Listener {
+    public enum Resolution {
+        MINUTE(60_000L),
+        HOUR(3_600_000L),
+        DAY(86_400_000L);
+
+        private final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        public long toMillis() {
+            return millis;
+        }
+    }
+
+    public enum Field {
+        TOTAL_PHYSICAL_MEMORY,
+        AVAILABLE_PHYSICAL_MEMORY,
+        TOTAL_SWAP_SPACE,
+        AVAILABLE_SWAP_SPACE;
+
+        long value(MemoryUsage u) {
+            switch (this) {
+                case TOTAL_PHYSICAL_MEMORY:
+                    return u.totalPhysicalMemory;
+                case AVAILABLE_PHYSICAL_MEMORY:
+                    return u.availablePhysicalMemory;
+                case TOTAL_SWAP_SPACE:
+                    return u.totalSwapSpace;
+                default:
+                    return u.availableSwapSpace;
+            }
+        }
+    }
+
+    /**
+     * Summary of one field in one bucket. Immutable.
+     */
+    public static final class Summary {
+        private final long count;
+        private final long min;
+        private final long max;
+        private final double mean;
+        private final long p1;
+        private final long p50;
+        private final long p99;
+
+        Summary(long count, long min, long max, double mean, long p1, long p50, long p99) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.p1 = p1;
+            this.p50 = p50;
+            this.p99 = p99;
+        }
+
+        /**
+         * Number of samples that had a value for this field. If 0, all the other figures are -1.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * 1st percentile, approximately.
+         */
+        public long getP1() {
+            return p1;
+        }
+
+        /**
+         * Median, approximately.
+         */
+        public long getP50() {
+            return p50;
+        }
+
+        /**
+         * 99th percentile, approximately.
+         */
+        public long getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "n=%d min=%d p1=%d p50=%d mean=%.0f p99=%d max=%d", count, min, p1, p50, mean, p99, max);
+        }
+    }
+
+    /**
+     * One bucket of one resolution. Immutable.
+     */
+    public static final class Bucket {
+        private final long start;
+        private final Resolution resolution;
+        private final Map<Field, Summary> summaries;
+
+        Bucket(long start, Resolution resolution, Map<Field, Summary> summaries) {
+            this.start = start;
+            this.resolution = resolution;
+            this.summaries = summaries;
+        }
+
+        /**
+         * Start of the time range that this bucket covers, inclusive, as in {@link System#currentTimeMillis()}.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * End of the time range that this bucket covers, exclusive.
+         */
+        public long getEnd() {
+            return start + resolution.millis;
+        }
+
+        public Resolution getResolution() {
+            return resolution;
+        }
+
+        public Summary get(Field f) {
+            return summaries.get(f);
+        }
+
+        @Override
+        public String toString() {
+            return resolution + "@" + start + " " + summaries;
+        }
+    }
+
+    /**
+     * Number of bins in each sketch.
+     */
+    private static final int BINS = 64;
+
+    /**
+     * Ratio between the bounds of a bin, before any merging.
+     */
+    private static final double GAMMA = 1.02;
+
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private static final int FIELDS = Field.values().length;
+
+    /**
+     * Buckets of one resolution. Bucket {@code b} is in slot {@code b % capacity}, and the data of
+     * field {@code f} in that slot is at index {@code slot * FIELDS + f} of the per-field arrays,
+     * and at {@code (slot * FIELDS + f) * BINS} of {@link #bins}.
+     */
+    private static final class Ring {
+        final Resolution resolution;
+        final int capacity;
+
+        /**
+         * Start of the bucket in each slot, or {@link Long#MIN_VALUE} if empty.
+         */
+        final long[] start;
+
+        final long[] count;
+        final long[] min;
+        final long[] max;
+        final double[] sum;
+
+        /**
+         * Number of samples that were 0, which the logarithmic bins can't hold.
+         */
+        final long[] zeros;
+
+        /**
+         * Index of the first bin, in units of the current bin width.
+         */
+        final int[] offset;
+
+        /**
+         * How many times pairs of bins have been merged.
+         */
+        final byte[] shift;
+
+        final int[] bins;
+
+        Ring(Resolution resolution, int capacity) {
+            this.resolution = resolution;
+            this.capacity = capacity;
+            start = new long[capacity];
+            Arrays.fill(start, Long.MIN_VALUE);
+            count = new long[capacity * FIELDS];
+            min = new long[capacity * FIELDS];
+            max = new long[capacity * FIELDS];
+            sum = new double[capacity * FIELDS];
+            zeros = new long[capacity * FIELDS];
+            offset = new int[capacity * FIELDS];
+            shift = new byte[capacity * FIELDS];
+            bins = new int[capacity * FIELDS * BINS];
+        }
+
+        /**
+         * @return
+         *      the slot that the bucket starting at the given time is in, or -1 if it's too old to keep.
+         */
+        int slot(long bucketStart) {
+            int slot = (int) Math.floorMod(Math.floorDiv(bucketStart, resolution.millis), (long) capacity);
+            if (start[slot] == bucketStart) {
+                return slot;
+            }
+            if (start[slot] > bucketStart) {
+                return -1;
+            }
+            start[slot] = bucketStart;
+            int i = slot * FIELDS;
+            Arrays.fill(count, i, i + FIELDS, 0);
+            Arrays.fill(sum, i, i + FIELDS, 0);
+            Arrays.fill(zeros, i, i + FIELDS, 0);
+            Arrays.fill(shift, i, i + FIELDS, (byte) 0);
+            Arrays.fill(bins, i * BINS, (i + FIELDS) * BINS, 0);
+            return slot;
+        }
+
+        void add(int i, long v) {
+            if (count[i] == 0) {
+                min[i] = v;
+                max[i] = v;
+            } else {
+                min[i] = Math.min(min[i], v);
+                max[i] = Math.max(max[i], v);
+            }
+            count[i]++;
+            sum[i] += v;
+            if (v == 0) {
+                zeros[i]++;
+                return;
+            }
+
+            int raw = (int) Math.floor(Math.log(v) / LOG_GAMMA);
+            int base = i * BINS;
+            if (count[i] - zeros[i] == 1) {
+                // first bin of the sketch: center the window on it
+                offset[i] = (raw >> shift[i]) - BINS / 2;
+            }
+            while (true) {
+                int b = (raw >> shift[i]) - offset[i];
+                if (b >= 0 && b < BINS) {
+                    bins[base + b]++;
+                    return;
+                }
+                slide(i, raw >> shift[i]);
+            }
+        }
+
+        /**
+         * Makes room for the given bin by moving the window, or if the values span too wide a range for that,
+         * by merging pairs of bins.
+         */
+        private void slide(int i, int bin) {
+            int base = i * BINS;
+            int lo = 0;
+            while (lo < BINS && bins[base + lo] == 0) {
+                lo++;
+            }
+            int hi = BINS - 1;
+            while (hi >= 0 && bins[base + hi] == 0) {
+                hi--;
+            }
+            // the occupied range, in bin indices, once the new bin is added
+            int from = Math.min(bin, offset[i] + lo);
+            int to = Math.max(bin, offset[i] + hi);
+            if (lo > hi) {
+                from = to = bin;
+            }
+            if (to - from < BINS) {
+                int newOffset = from - (BINS - 1 - (to - from)) / 2;
+                move(base, offset[i] - newOffset);
+                offset[i] = newOffset;
+                return;
+            }
+
+            // merge pairs: bin k becomes k >> 1 in the coarser scale.
+            // every bin moves to the same position or a lower one, so this can be done in place
+            int newOffset = offset[i] >> 1;
+            for (int b = 0; b < BINS; b++) {
+                int c = bins[base + b];
+                bins[base + b] = 0;
+                bins[base + ((offset[i] + b) >> 1) - newOffset] += c;
+            }
+            offset[i] = newOffset;
+            shift[i]++;
+        }
+
+        /**
+         * Moves the bins by {@code d} positions, dropping nothing since the caller made sure they fit.
+         */
+        private void move(int base, int d) {
+            if (d > 0) {
+                System.arraycopy(bins, base, bins, base + d, BINS - d);
+                Arrays.fill(bins, base, base + d, 0);
+            } else if (d < 0) {
+                System.arraycopy(bins, base - d, bins, base, BINS + d);
+                Arrays.fill(bins, base + BINS + d, base + BINS, 0);
+            }
+        }
+
+        Summary summarize(int i) {
+            long n = count[i];
+            if (n == 0) {
+                return new Summary(0, -1, -1, -1, -1, -1, -1);
+            }
+            return new Summary(
+                    n, min[i], max[i], sum[i] / n, quantile(i, 0.01), quantile(i, 0.5), quantile(i, 0.99));
+        }
+
+        long quantile(int i, double q) {
+            long rank = Math.max(1, (long) Math.ceil(q * count[i]));
+            if (rank <= zeros[i]) {
+                return 0;
+            }
+            long seen = zeros[i];
+            int base = i * BINS;
+            for (int b = 0; b < BINS; b++) {
+                seen += bins[base + b];
+                if (seen >= rank) {
+                    // geometric middle of the bin
+                    double lower = (double) ((offset[i] + b) << shift[i]);
+                    double width = 1 << shift[i];
+                    long v = Math.round(Math.exp((lower + width / 2) * LOG_GAMMA));
+                    return Math.max(min[i], Math.min(max[i], v));
+                }
+            }
+            return max[i];
+        }
+    }
+
+    private final Ring[] rings = new Ring[Resolution.values().length];
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param minutes
+     *      Number of 1-minute buckets to keep, such as 1440 for a day.
+     * @param hours
+     *      Number of 1-hour buckets to keep.
+     * @param days
+     *      Number of 1-day buckets to keep.
+     */
+    public MemoryRollup(int minutes, int hours, int days) {
+        int[] capacities = {minutes, hours, days};
+        for (Resolution r : Resolution.values()) {
+            int c = capacities[r.ordinal()];
+            if (c <= 0) {
+                throw new IllegalArgumentException("Number of " + r + " buckets must be positive: " + c);
+            }
+            rings[r.ordinal()] = new Ring(r, c);
+        }
+    }
+
+    @Override
+    public void onSample(MemorySampler.Sample sample) {
+        add(sample.timestamp, sample.usage);
+    }
+
+    public void add(long timestamp, MemoryUsage usage) {
+        lock.writeLock().lock();
+        try {
+            for (Ring r : rings) {
+                int slot = r.slot(timestamp - Math.floorMod(timestamp, r.resolution.millis));
+                if (slot < 0) {
+                    continue;
+                }
+                for (Field f : Field.values()) {
+                    long v = f.value(usage);
+                    if (v >= 0) {
+                        r.add(slot * FIELDS + f.ordinal(), v);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the buckets of the given resolution that start in the time window {@code [from, to)}, oldest first.
+     * Buckets without samples are left out.
+     */
+    public List<Bucket> getBuckets(Resolution resolution, long from, long to) {
+        lock.readLock().lock();
+        try {
+            Ring r = rings[resolution.ordinal()];
+            List<Bucket> result = new ArrayList<>();
+            for (int slot = 0; slot < r.capacity; slot++) {
+                long start = r.start[slot];
+                if (start == Long.MIN_VALUE || start < from || start >= to) {
+                    continue;
+                }
+                Map<Field, Summary> summaries = new EnumMap<>(Field.class);
+                for (Field f : Field.values()) {
+                    summaries.put(f, r.summarize(slot * FIELDS + f.ordinal()));
+                }
+                result.add(new Bucket(start, resolution, summaries));
+            }
+            result.sort((a, b) -> Long.compare(a.start, b.start));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all the buckets of the given resolution, oldest first.
+     */
+    public List<Bucket> getBuckets(Resolution resolution) {
+        return getBuckets(resolution, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+}
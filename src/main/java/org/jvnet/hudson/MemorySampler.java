@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps another {@link MemoryMonitor} and samples it at a fixed interval on a daemon thread,
+ * so that {@link #monitor()} and {@link #getLatest()} return the last result right away,
+ * without doing any I/O or forking anything on the caller's thread.
+ *
+ * <pre>
+ * MemorySampler sampler = new MemorySampler(MemoryMonitor.get(), 5, TimeUnit.SECONDS).start();
+ * ...
+ * MemoryUsage usage = sampler.monitor();
+ * </pre>
+ */
+public final class MemorySampler extends MemoryMonitor implements Closeable {
+    /**
+     * A {@link MemoryUsage} and when it was taken. Immutable.
+     */
+    public static final class Sample {
+        public final MemoryUsage usage;
+
+        /**
+         * When the sample was taken, as in {@link System#currentTimeMillis()}.
+         */
+        public final long timestamp;
+
+        public Sample(MemoryUsage usage, long timestamp) {
+            this.usage = usage;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return usage + " @" + timestamp;
+        }
+    }
+
+    /**
+     * Receives every sample as it is taken, normally on the sampling thread, and never concurrently.
+     * Implementations should return quickly, since they hold up the next sample.
+     */
+    public interface Listener {
+        void onSample(Sample sample);
+    }
+
+    private final MemoryMonitor monitor;
+    private final long interval;
+    private final TimeUnit unit;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Sample latest;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Taken while collecting a sample, so that samples are published and the listeners notified in order.
+     */
+    private final Object collectLock = new Object();
+
+    /**
+     * @param monitor
+     *      The monitor that actually collects the data.
+     */
+    public MemorySampler(MemoryMonitor monitor, long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.monitor = monitor;
+        this.interval = interval;
+        this.unit = unit;
+    }
+
+    public MemoryMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Starts sampling in the background. The first sample is taken right away.
+     * Calling this method more than once has no effect.
+     *
+     * @return this
+     */
+    public synchronized MemorySampler start() {
+        if (executor == null) {
+            ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "MemorySampler for " + monitor.getClass().getName());
+                t.setDaemon(true);
+                return t;
+            });
+            e.setRemoveOnCancelPolicy(true);
+            e.scheduleWithFixedDelay(this::sample, 0, interval, unit);
+            executor = e;
+        }
+        return this;
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Stops sampling. {@link #getLatest()} keeps returning the last sample.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Returns the most recent sample.
+     *
+     * @return
+     *      null if no sample has been taken successfully yet.
+     */
+    public Sample getLatest() {
+        return latest;
+    }
+
+    /**
+     * Returns the most recent sample, or collects one synchronously if there's none yet.
+     */
+    @Override
+    public MemoryUsage monitor() throws IOException {
+        Sample s = latest;
+        if (s != null) {
+            return s.usage;
+        }
+        return collectFirst().usage;
+    }
+
+    /**
+     * Completes inline with the latest sample if there is one.
+     */
+    @Override
+    public CompletableFuture<MemoryUsage> monitorAsync(Executor executor) {
+        Sample s = latest;
+        if (s != null) {
+            return CompletableFuture.completedFuture(s.usage);
+        }
+        return super.monitorAsync(executor);
+    }
+
+    private void sample() {
+        try {
+            collect();
+        } catch (IOException | RuntimeException e) {
+            // keep the last good sample around, and try again next time
+            LOGGER.log(Level.FINE, "Failed to sample " + monitor.getClass().getName(), e);
+        }
+    }
+
+    private Sample collect() throws IOException {
+        synchronized (collectLock) {
+            MemoryUsage usage = monitor.monitor();
+            Sample s = new Sample(usage, System.currentTimeMillis());
+            latest = s;
+            for (Listener l : listeners) {
+                try {
+                    l.onSample(s);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener " + l + " failed", e);
+                }
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Collects a sample on the caller's thread, unless the sampling thread got one while we waited for it.
+     */
+    private Sample collectFirst() throws IOException {
+        synchronized (collectLock) {
+            Sample s = latest;
+            return s != null ? s : collect();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MemorySampler.class.getName());
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory usage of the host and of this JVM, taken together. Immutable.
+ *
+ * <p>
+ * The host figures come from a {@link MemoryMonitor}, and the JVM figures from the platform MXBeans
+ * right after, so that both describe the same moment as closely as possible. The headroom methods
+ * derive the figures that matter for deciding whether to shrink the heap or stop taking work,
+ * and compute them from the fields without allocating.
+ *
+ * <p>
+ * All values are in bytes, and -1 if unknown or undefined.
+ */
+public final class MemorySnapshot implements Serializable {
+    /**
+     * When this snapshot was taken, as in {@link System#currentTimeMillis()}.
+     */
+    public final long timestamp;
+
+    /**
+     * Memory of the host, or of the container.
+     */
+    public final MemoryUsage host;
+
+    public final long heapUsed;
+    public final long heapCommitted;
+    public final long heapMax;
+
+    /**
+     * Non-heap memory, which includes metaspace and the code cache.
+     */
+    public final long nonHeapUsed;
+
+    public final long nonHeapCommitted;
+    public final long nonHeapMax;
+
+    /**
+     * The code cache, a part of the non-heap memory.
+     */
+    public final long codeCacheUsed;
+
+    public final long codeCacheCommitted;
+    public final long codeCacheMax;
+
+    /**
+     * Memory used by direct buffers, such as those of NIO, which is neither heap nor non-heap.
+     */
+    public final long directUsed;
+
+    /**
+     * Total capacity of the direct buffers.
+     */
+    public final long directCapacity;
+
+    /**
+     * <tt>-XX:MaxDirectMemorySize</tt>, or what it defaults to.
+     */
+    public final long directMax;
+
+    /**
+     * Memory mapped files. These pages are backed by the files, so the kernel can drop them.
+     */
+    public final long mappedUsed;
+
+    public final long mappedCapacity;
+
+    /*package*/ MemorySnapshot(
+            long timestamp,
+            MemoryUsage host,
+            long heapUsed,
+            long heapCommitted,
+            long heapMax,
+            long nonHeapUsed,
+            long nonHeapCommitted,
+            long nonHeapMax,
+            long codeCacheUsed,
+            long codeCacheCommitted,
+            long codeCacheMax,
+            long directUsed,
+            long directCapacity,
+            long directMax,
+            long mappedUsed,
+            long mappedCapacity) {
+        this.timestamp = timestamp;
+        this.host = host;
+        this.heapUsed = heapUsed;
+        this.heapCommitted = heapCommitted;
+        this.heapMax = heapMax;
+        this.nonHeapUsed = nonHeapUsed;
+        this.nonHeapCommitted = nonHeapCommitted;
+        this.nonHeapMax = nonHeapMax;
+        this.codeCacheUsed = codeCacheUsed;
+        this.codeCacheCommitted = codeCacheCommitted;
+        this.codeCacheMax = codeCacheMax;
+        this.directUsed = directUsed;
+        this.directCapacity = directCapacity;
+        this.directMax = directMax;
+        this.mappedUsed = mappedUsed;
+        this.mappedCapacity = mappedCapacity;
+    }
+
+    /**
+     * Takes a snapshot with the host figures from {@link MemoryMonitor#get()}.
+     */
+    public static MemorySnapshot take() throws IOException {
+        return take(MemoryMonitor.get());
+    }
+
+    /**
+     * Takes a snapshot with the host figures from the given monitor.
+     */
+    public static MemorySnapshot take(MemoryMonitor monitor) throws IOException {
+        MemoryUsage host = monitor.monitor();
+        long timestamp = System.currentTimeMillis();
+
+        java.lang.management.MemoryUsage heap = MEMORY.getHeapMemoryUsage();
+        java.lang.management.MemoryUsage nonHeap = MEMORY.getNonHeapMemoryUsage();
+
+        long codeUsed = 0;
+        long codeCommitted = 0;
+        long codeMax = 0;
+        for (MemoryPoolMXBean pool : CODE_CACHE) {
+            java.lang.management.MemoryUsage u = pool.getUsage();
+            if (u == null) {
+                continue;
+            }
+            codeUsed += u.getUsed();
+            codeCommitted += u.getCommitted();
+            codeMax = codeMax < 0 || u.getMax() < 0 ? -1 : codeMax + u.getMax();
+        }
+        if (CODE_CACHE.isEmpty()) {
+            codeUsed = codeCommitted = codeMax = -1;
+        }
+
+        long directUsed = -1;
+        long directCapacity = -1;
+        long mappedUsed = -1;
+        long mappedCapacity = -1;
+        for (BufferPoolMXBean pool : BUFFER_POOLS) {
+            if (pool.getName().equals("direct")) {
+                directUsed = pool.getMemoryUsed();
+                directCapacity = pool.getTotalCapacity();
+            } else if (pool.getName().equals("mapped")) {
+                mappedUsed = pool.getMemoryUsed();
+                mappedCapacity = pool.getTotalCapacity();
+            }
+        }
+
+        return new MemorySnapshot(
+                timestamp,
+                host,
+                heap.getUsed(),
+                heap.getCommitted(),
+                heap.getMax(),
+                nonHeap.getUsed(),
+                nonHeap.getCommitted(),
+                nonHeap.getMax(),
+                codeUsed,
+                codeCommitted,
+                codeMax,
+                directUsed,
+                directCapacity,
+                DIRECT_MAX,
+                mappedUsed,
+                mappedCapacity);
+    }
+
+    /**
+     * How much more the heap can hold before it hits its maximum.
+     */
+    public long getHeapHeadroom() {
+        return heapMax < 0 ? -1 : heapMax - heapUsed;
+    }
+
+    /**
+     * How much the heap can still grow by committing more memory from the host.
+     */
+    public long getHeapUncommitted() {
+        return heapMax < 0 ? -1 : heapMax - heapCommitted;
+    }
+
+    /**
+     * How much more direct buffers can take before they hit their maximum.
+     */
+    public long getDirectHeadroom() {
+        return directMax < 0 || directCapacity < 0 ? -1 : directMax - directCapacity;
+    }
+
+    /**
+     * Memory that this JVM has taken from the host for the heap, non-heap and direct buffers.
+     * Thread stacks and the JVM's own native allocations aren't included.
+     */
+    public long getJvmCommitted() {
+        return heapCommitted + nonHeapCommitted + Math.max(directCapacity, 0);
+    }
+
+    /**
+     * Available physical memory of the host, minus what the heap and direct buffers may still claim.
+     * Negative if the host can't accommodate this JVM growing to its limits.
+     * This is the figure to watch when deciding whether to take on more work.
+     */
+    public long getHostHeadroom() {
+        long available = host.availablePhysicalMemory;
+        if (available < 0) {
+            return -1;
+        }
+        return available - Math.max(getHeapUncommitted(), 0) - Math.max(getDirectHeadroom(), 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s  Heap:%d/%d/%dMB NonHeap:%d/%dMB CodeCache:%d/%dMB Direct:%d/%dMB Mapped:%dMB",
+                host,
+                MemoryUsage.toMB(heapUsed),
+                MemoryUsage.toMB(heapCommitted),
+                MemoryUsage.toMB(heapMax),
+                MemoryUsage.toMB(nonHeapUsed),
+                MemoryUsage.toMB(nonHeapCommitted),
+                MemoryUsage.toMB(codeCacheUsed),
+                MemoryUsage.toMB(codeCacheCommitted),
+                MemoryUsage.toMB(directCapacity),
+                MemoryUsage.toMB(directMax),
+                MemoryUsage.toMB(mappedCapacity));
+    }
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private static final List<BufferPoolMXBean> BUFFER_POOLS =
+            ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    /**
+     * "CodeHeap 'non-nmethods'" and friends with the segmented code cache, "Code Cache" otherwise.
+     */
+    private static final List<MemoryPoolMXBean> CODE_CACHE = new ArrayList<>();
+
+    static {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().startsWith("CodeHeap") || pool.getName().equals("Code Cache")) {
+                CODE_CACHE.add(pool);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MemorySnapshot.class.getName());
+
+    private static final long DIRECT_MAX = directMax();
+
+    /**
+     * The limit on direct buffers, which defaults to the maximum heap size.
+     */
+    private static long directMax() {
+        try {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (hotspot != null) {
+                long v = Long.parseLong(hotspot.getVMOption("MaxDirectMemorySize").getValue());
+                if (v > 0) {
+                    return v;
+                }
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // not HotSpot
+            LOGGER.log(Level.FINE, "Failed to determine MaxDirectMemorySize", e);
+        }
+        long max = Runtime.getRuntime().maxMemory();
+        return max == Long.MAX_VALUE ? -1 : max;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
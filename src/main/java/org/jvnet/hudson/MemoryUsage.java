@@ -67,7 +67,7 @@ public class MemoryUsage implements Serializable {
     MemoryUsage(long[] v) throws IOException {
         this(v[0], v[1], v[2], v[3]);
         if (!hasData(v)) {
-            throw new IOException("No data available");
+            throw new NoDataException();
         }
     }
 
@@ -81,7 +81,7 @@ public class MemoryUsage implements Serializable {
                 toMB(totalSwapSpace));
     }
 
-    private static long toMB(long l) {
+    /*package*/ static long toMB(long l) {
         return l / (1024 * 1024);
     }
 
@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link MemoryUsage} and {@link ExtendedMemoryUsage}, for sending
+ * lots of samples around, such as from agents to the controller.
+ *
+ * <p>
+ * Java serialization of a {@link MemoryUsage} takes well over a hundred bytes for the class descriptor
+ * and four fixed 8-byte longs. Here a sample typically takes about 15 bytes: values are written as
+ * zig-zag varints, after dropping the trailing zero bits that they all have in common
+ * (memory is usually counted in kB or pages), and -1 for "unknown" takes one byte.
+ * The serialized form of {@link MemoryUsage} itself is left alone, so old peers keep working.
+ *
+ * <p>
+ * A single sample is a version byte followed by the record. A batch is a version byte,
+ * the number of records as a varint, and then the records. A record is one byte with the kind
+ * (bit 7) and the common shift (bits 0-5), followed by the values in the order of the constructor.
+ */
+public final class MemoryUsageCodec {
+    /**
+     * Written first, so that the format can evolve.
+     */
+    public static final byte VERSION = 1;
+
+    private static final int EXTENDED = 0x80;
+    private static final int SHIFT_MASK = 0x3F;
+
+    private MemoryUsageCodec() {}
+
+    /**
+     * Encodes a single sample.
+     */
+    public static byte[] encode(MemoryUsage u) {
+        long[] v = values(u);
+        int shift = shift(v);
+        ByteBuffer buf = ByteBuffer.allocate(1 + recordSize(v, shift));
+        buf.put(VERSION);
+        putRecord(buf, u instanceof ExtendedMemoryUsage, v, shift);
+        return buf.array();
+    }
+
+    /**
+     * Decodes what {@link #encode(MemoryUsage)} produced.
+     */
+    public static MemoryUsage decode(byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            checkVersion(buf);
+            return getRecord(buf);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated data", e);
+        }
+    }
+
+    /**
+     * Encodes many samples into one buffer, ready to be read.
+     */
+    public static ByteBuffer encodeBatch(Collection<? extends MemoryUsage> samples) {
+        // size it exactly in a first pass, as the samples are small and there may be many
+        int size = 1 + varLongSize(samples.size());
+        for (MemoryUsage u : samples) {
+            long[] v = values(u);
+            size += recordSize(v, shift(v));
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(VERSION);
+        putVarLong(buf, samples.size());
+        for (MemoryUsage u : samples) {
+            long[] v = values(u);
+            putRecord(buf, u instanceof ExtendedMemoryUsage, v, shift(v));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes what {@link #encodeBatch(Collection)} produced, advancing the position of the buffer.
+     */
+    public static List<MemoryUsage> decodeBatch(ByteBuffer buf) throws IOException {
+        try {
+            checkVersion(buf);
+            long n = getVarLong(buf);
+            // every record takes at least 5 bytes, so a bogus count can't make us allocate a lot
+            if (n < 0 || n > buf.remaining() / 5) {
+                throw new IOException("Invalid number of samples: " + n);
+            }
+            List<MemoryUsage> r = new ArrayList<>((int) n);
+            for (long i = 0; i < n; i++) {
+                r.add(getRecord(buf));
+            }
+            return r;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated data", e);
+        }
+    }
+
+    private static void checkVersion(ByteBuffer buf) throws IOException {
+        byte version = buf.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+    }
+
+    /*package*/ static long[] values(MemoryUsage u) {
+        if (u instanceof ExtendedMemoryUsage) {
+            ExtendedMemoryUsage e = (ExtendedMemoryUsage) u;
+            return new long[] {
+                e.totalPhysicalMemory,
+                e.availablePhysicalMemory,
+                e.totalSwapSpace,
+                e.availableSwapSpace,
+                e.freePhysicalMemory,
+                e.buffers,
+                e.cached,
+                e.swapCached,
+                e.shmem,
+                e.slab,
+                e.slabReclaimable,
+                e.dirty,
+                e.writeback
+            };
+        }
+        return new long[] {u.totalPhysicalMemory, u.availablePhysicalMemory, u.totalSwapSpace, u.availableSwapSpace};
+    }
+
+    /*package*/ static MemoryUsage create(boolean extended, long[] v) {
+        if (extended) {
+            return new ExtendedMemoryUsage(
+                    v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8], v[9], v[10], v[11], v[12]);
+        }
+        return new MemoryUsage(v[0], v[1], v[2], v[3]);
+    }
+
+    /**
+     * Number of trailing zero bits that all the known values have in common.
+     * -1 is left out, as it's encoded separately. Other negative values make this 0.
+     */
+    /*package*/ static int shift(long[] v) {
+        int shift = SHIFT_MASK;
+        for (long x : v) {
+            if (x < -1) {
+                return 0;
+            }
+            if (x > 0) {
+                shift = Math.min(shift, Long.numberOfTrailingZeros(x));
+            }
+        }
+        return shift;
+    }
+
+    /*package*/ static int recordSize(long[] v, int shift) {
+        int size = 1;
+        for (long x : v) {
+            size += varLongSize(zigzag(scale(x, shift)));
+        }
+        return size;
+    }
+
+    /*package*/ static void putRecord(ByteBuffer buf, boolean extended, long[] v, int shift) {
+        buf.put((byte) ((extended ? EXTENDED : 0) | shift));
+        for (long x : v) {
+            putVarLong(buf, zigzag(scale(x, shift)));
+        }
+    }
+
+    /*package*/ static MemoryUsage getRecord(ByteBuffer buf) throws IOException {
+        int header = buf.get() & 0xFF;
+        boolean extended = (header & EXTENDED) != 0;
+        int shift = header & SHIFT_MASK;
+        long[] v = new long[extended ? 13 : 4];
+        for (int i = 0; i < v.length; i++) {
+            long x = unzigzag(getVarLong(buf));
+            v[i] = x == -1 ? -1 : x << shift;
+        }
+        return create(extended, v);
+    }
+
+    private static long scale(long x, int shift) {
+        return x == -1 ? -1 : x >> shift;
+    }
+
+    /*package*/ static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /*package*/ static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint.
+     */
+    /*package*/ static void putVarLong(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /*package*/ static long getVarLong(ByteBuffer buf) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /*package*/ static int varLongSize(long v) {
+        return v == 0 ? 1 : (63 - Long.numberOfLeadingZeros(v)) / 7 + 1;
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Delta-encoded stream of {@link MemoryUsage} samples, for pushing a continuous feed cheaply,
+ * such as from an agent to the controller.
+ *
+ * <p>
+ * Every so often the {@link Encoder} sends a keyframe with the full sample, as {@link MemoryUsageCodec}
+ * encodes it. In between, it sends only which fields changed and by how much, so a sample where
+ * nothing changed takes 7 bytes in total. Each frame carries a magic byte, a sequence number and a checksum,
+ * so the {@link Decoder} can find the next frame after corrupt bytes, notices frames that went missing,
+ * and drops deltas until the next keyframe rather than reporting wrong values.
+ *
+ * <p>
+ * A frame consists of
+ * <ol>
+ * <li>the magic byte <tt>0xAE</tt>,
+ * <li>the type, <tt>'K'</tt> for a keyframe or <tt>'D'</tt> for a delta,
+ * <li>the sequence number, as a varint in a keyframe, and only its lowest 8 bits in a delta,
+ * <li>the length of the payload as a varint,
+ * <li>the payload, and
+ * <li>the lower 16 bits of the CRC-32C of the full sequence number (8 bytes, big-endian) followed by
+ * everything from the type to the end of the payload, big-endian.
+ * </ol>
+ * As the checksum covers the full sequence number, a delta that follows a gap of any size fails the check
+ * rather than being applied to the wrong base.
+ * The payload of a delta is a bit mask of the changed fields as a varint, and unless that's 0, the number
+ * of trailing zero bits that all the deltas share, and the shifted deltas as zig-zag varints.
+ */
+public final class MemoryUsageStream {
+    private static final byte MAGIC = (byte) 0xAE;
+    private static final byte KEYFRAME = 'K';
+    private static final byte DELTA = 'D';
+
+    /**
+     * Largest payload that we ever write: a keyframe of an {@link ExtendedMemoryUsage}.
+     */
+    private static final int MAX_PAYLOAD = 1 + 13 * 10;
+
+    /**
+     * Magic, type, sequence number and length.
+     */
+    private static final int MAX_HEADER = 1 + 1 + 10 + 10;
+
+    private static final int MIN_FRAME = 1 + 1 + 1 + 1 + 2;
+
+    private MemoryUsageStream() {}
+
+    private static int checksum(CRC32C crc, long seq, byte[] buf, int off, int len) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (seq >>> shift));
+        }
+        crc.update(buf, off, len);
+        return (int) crc.getValue() & 0xFFFF;
+    }
+
+    /**
+     * Writes samples. Not thread-safe.
+     */
+    public static final class Encoder implements Closeable, Flushable {
+        private final OutputStream out;
+        private final WritableByteChannel channel;
+        private final int keyframeInterval;
+        private final ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER + MAX_PAYLOAD + 2);
+        private final ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD);
+        private final CRC32C crc = new CRC32C();
+
+        private long seq;
+        private long[] last;
+        private boolean extended;
+        private int sinceKeyframe;
+
+        public Encoder(OutputStream out) {
+            this(out, null, 64);
+        }
+
+        /**
+         * @param keyframeInterval
+         *      A keyframe is sent at least every this many samples.
+         */
+        public Encoder(OutputStream out, int keyframeInterval) {
+            this(out, null, keyframeInterval);
+        }
+
+        public Encoder(WritableByteChannel channel) {
+            this(null, channel, 64);
+        }
+
+        public Encoder(WritableByteChannel channel, int keyframeInterval) {
+            this(null, channel, keyframeInterval);
+        }
+
+        private Encoder(OutputStream out, WritableByteChannel channel, int keyframeInterval) {
+            if (keyframeInterval < 1) {
+                throw new IllegalArgumentException("keyframeInterval must be positive: " + keyframeInterval);
+            }
+            this.out = out;
+            this.channel = channel;
+            this.keyframeInterval = keyframeInterval;
+        }
+
+        /**
+         * Makes the next sample go out as a keyframe, for example after the receiving end reconnected.
+         */
+        public void requestKeyframe() {
+            last = null;
+        }
+
+        public void write(MemoryUsage u) throws IOException {
+            long[] v = MemoryUsageCodec.values(u);
+            boolean ext = u instanceof ExtendedMemoryUsage;
+            boolean key = last == null || ext != extended || sinceKeyframe >= keyframeInterval;
+
+            payload.clear();
+            frame.clear();
+            frame.put(MAGIC);
+            if (key) {
+                MemoryUsageCodec.putRecord(payload, ext, v, MemoryUsageCodec.shift(v));
+                frame.put(KEYFRAME);
+                MemoryUsageCodec.putVarLong(frame, seq);
+                extended = ext;
+                sinceKeyframe = 0;
+            } else {
+                putDelta(v);
+                frame.put(DELTA);
+                frame.put((byte) seq);
+                sinceKeyframe++;
+            }
+            last = v;
+
+            MemoryUsageCodec.putVarLong(frame, payload.position());
+            payload.flip();
+            frame.put(payload);
+            frame.putShort((short) checksum(crc, seq, frame.array(), 1, frame.position() - 1));
+            frame.flip();
+            seq++;
+
+            if (out != null) {
+                out.write(frame.array(), 0, frame.limit());
+            } else {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        }
+
+        private void putDelta(long[] v) {
+            int mask = 0;
+            int shift = 63;
+            for (int i = 0; i < v.length; i++) {
+                long d = v[i] - last[i];
+                if (d != 0) {
+                    mask |= 1 << i;
+                    shift = Math.min(shift, Long.numberOfTrailingZeros(d));
+                }
+            }
+            MemoryUsageCodec.putVarLong(payload, mask);
+            if (mask != 0) {
+                payload.put((byte) shift);
+                for (int i = 0; i < v.length; i++) {
+                    if ((mask & (1 << i)) != 0) {
+                        MemoryUsageCodec.putVarLong(payload, MemoryUsageCodec.zigzag((v[i] - last[i]) >> shift));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads samples. Not thread-safe.
+     */
+    public static final class Decoder implements Closeable {
+        private final InputStream in;
+        private final byte[] buf = new byte[4096];
+        private int pos;
+        private int limit;
+        private boolean eof;
+        private final CRC32C crc = new CRC32C();
+
+        /**
+         * Sequence number of the next frame, or -1 before the first keyframe.
+         */
+        private long expectedSeq = -1;
+
+        /**
+         * The values as of the last frame, or null if the next delta can't be applied.
+         */
+        private long[] last;
+
+        private boolean extended;
+
+        // the frame that nextFrame() found
+        private long frameSeq;
+        private int frameLength;
+
+        private long skippedBytes;
+        private long skippedFrames;
+
+        public Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        public Decoder(ReadableByteChannel channel) {
+            this(Channels.newInputStream(channel));
+        }
+
+        /**
+         * Reads the next sample, skipping over anything that's corrupt or can't be decoded
+         * because frames before it went missing.
+         *
+         * @return
+         *      null at the end of the stream.
+         * @throws IOException
+         *      if the underlying stream fails, or a frame passes the checksum but makes no sense,
+         *      which suggests that the other end uses an incompatible version.
+         */
+        public MemoryUsage read() throws IOException {
+            while (true) {
+                int payloadStart = nextFrame();
+                if (payloadStart < 0) {
+                    return null;
+                }
+                byte type = buf[pos + 1];
+                long seq = frameSeq;
+                ByteBuffer p = ByteBuffer.wrap(buf, payloadStart, frameLength);
+                pos = payloadStart + frameLength + 2;
+
+                try {
+                    if (type == KEYFRAME) {
+                        MemoryUsage u = MemoryUsageCodec.getRecord(p);
+                        last = MemoryUsageCodec.values(u);
+                        extended = u instanceof ExtendedMemoryUsage;
+                        expectedSeq = seq + 1;
+                        return u;
+                    }
+                    boolean lost = last == null || seq != expectedSeq;
+                    expectedSeq = seq + 1;
+                    if (lost) {
+                        // can't apply this without what came before. wait for the next keyframe
+                        last = null;
+                        skippedFrames++;
+                        continue;
+                    }
+                    applyDelta(p);
+                    return MemoryUsageCodec.create(extended, last.clone());
+                } catch (BufferUnderflowException e) {
+                    throw new IOException("Malformed frame " + seq, e);
+                }
+            }
+        }
+
+        private void applyDelta(ByteBuffer p) throws IOException {
+            long mask = MemoryUsageCodec.getVarLong(p);
+            if (mask >>> last.length != 0) {
+                throw new IOException("Invalid field mask: " + Long.toBinaryString(mask));
+            }
+            if (mask == 0) {
+                return;
+            }
+            int shift = p.get();
+            for (int i = 0; i < last.length; i++) {
+                if ((mask & (1L << i)) != 0) {
+                    last[i] += MemoryUsageCodec.unzigzag(MemoryUsageCodec.getVarLong(p)) << shift;
+                }
+            }
+        }
+
+        /**
+         * Finds the next intact frame at or after {@link #pos}, which is left at its start.
+         *
+         * @return
+         *      the offset of its payload in {@link #buf}, or -1 at the end of the stream.
+         */
+        private int nextFrame() throws IOException {
+            // only wait for as many bytes as the frame needs, so that a live stream is decoded as it arrives
+            int need = MIN_FRAME;
+            while (true) {
+                int available = fill(need);
+                if (available < MIN_FRAME) {
+                    skip(limit - pos);
+                    return -1;
+                }
+                need = MIN_FRAME;
+                byte type = buf[pos + 1];
+                if (buf[pos] != MAGIC || (type != KEYFRAME && type != DELTA)) {
+                    skip(1);
+                    continue;
+                }
+
+                ByteBuffer h = ByteBuffer.wrap(buf, pos + 2, limit - pos - 2);
+                long len;
+                try {
+                    if (type == KEYFRAME) {
+                        frameSeq = MemoryUsageCodec.getVarLong(h);
+                    } else if (expectedSeq < 0) {
+                        // nothing to check it against, and no use for it either
+                        skip(1);
+                        continue;
+                    } else {
+                        // the full sequence number closest to what we expect, which the checksum verifies
+                        frameSeq = expectedSeq + ((h.get() - expectedSeq) & 0xFF);
+                    }
+                    len = MemoryUsageCodec.getVarLong(h);
+                } catch (BufferUnderflowException e) {
+                    if (!eof) {
+                        // the header continues past what we have so far
+                        need = available + 1;
+                    } else {
+                        skip(1);
+                    }
+                    continue;
+                } catch (IOException e) {
+                    skip(1);
+                    continue;
+                }
+                if (len < 0 || len > MAX_PAYLOAD) {
+                    skip(1);
+                    continue;
+                }
+                int header = h.position() - pos;
+                int total = header + (int) len + 2;
+                if (fill(total) < total) {
+                    skip(limit - pos);
+                    return -1;
+                }
+
+                int sum = ((buf[pos + total - 2] & 0xFF) << 8) | (buf[pos + total - 1] & 0xFF);
+                if (checksum(crc, frameSeq, buf, pos + 1, total - 3) != sum) {
+                    skip(1);
+                    continue;
+                }
+                frameLength = (int) len;
+                return pos + header;
+            }
+        }
+
+        private void skip(int n) {
+            pos += n;
+            skippedBytes += n;
+        }
+
+        /**
+         * Tries to have at least {@code n} bytes from {@link #pos} in the buffer.
+         *
+         * @return
+         *      the number of bytes available, which is less than {@code n} only at the end of the stream.
+         */
+        private int fill(int n) throws IOException {
+            if (limit - pos >= n) {
+                return limit - pos;
+            }
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            while (!eof && limit < n) {
+                int r = in.read(buf, limit, buf.length - limit);
+                if (r < 0) {
+                    eof = true;
+                } else {
+                    limit += r;
+                }
+            }
+            return limit - pos;
+        }
+
+        /**
+         * Number of bytes skipped because they weren't part of an intact frame.
+         */
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        /**
+         * Number of intact frames that were dropped because frames before them went missing.
+         */
+        public long getSkippedFrames() {
+            return skippedFrames;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tells subscribers when available physical memory or swap drops below a low watermark,
+ * and when it recovers above a high watermark, based on the samples of one {@link MemorySampler}.
+ *
+ * <p>
+ * Between the two watermarks nothing happens, so a value that hovers around either of them
+ * doesn't cause a flood of notifications. All subscriptions are evaluated together on the
+ * sampling thread as each sample comes in, so any number of them costs no extra sampling.
+ *
+ * <pre>
+ * MemoryWatermarks w = new MemoryWatermarks(sampler);
+ * w.subscribe(Resource.PHYSICAL_MEMORY, Watermark.percent(5), Watermark.bytes(1L &lt;&lt; 30), listener);
+ * </pre>
+ */
+public final class MemoryWatermarks implements MemorySampler.Listener, Closeable {
+    /**
+     * What to watch.
+     */
+    public enum Resource {
+        PHYSICAL_MEMORY {
+            @Override
+            long total(MemoryUsage u) {
+                return u.totalPhysicalMemory;
+            }
+
+            @Override
+            long available(MemoryUsage u) {
+                return u.availablePhysicalMemory;
+            }
+        },
+        SWAP {
+            @Override
+            long total(MemoryUsage u) {
+                return u.totalSwapSpace;
+            }
+
+            @Override
+            long available(MemoryUsage u) {
+                return u.availableSwapSpace;
+            }
+        };
+
+        abstract long total(MemoryUsage u);
+
+        abstract long available(MemoryUsage u);
+    }
+
+    /**
+     * An amount of available memory, either absolute or relative to the total.
+     */
+    public static final class Watermark {
+        private final long bytes;
+        private final double percent;
+
+        private Watermark(long bytes, double percent) {
+            this.bytes = bytes;
+            this.percent = percent;
+        }
+
+        public static Watermark bytes(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Negative watermark: " + bytes);
+            }
+            return new Watermark(bytes, -1);
+        }
+
+        /**
+         * @param percent
+         *      Of the total, between 0 and 100.
+         */
+        public static Watermark percent(double percent) {
+            if (!(percent >= 0 && percent <= 100)) {
+                throw new IllegalArgumentException("Watermark must be between 0 and 100%: " + percent);
+            }
+            return new Watermark(-1, percent);
+        }
+
+        /**
+         * @return
+         *      The watermark in bytes, or -1 if that depends on the total and the total is unknown.
+         */
+        long resolve(long total) {
+            if (percent < 0) {
+                return bytes;
+            }
+            return total < 0 ? -1 : (long) (total * percent / 100);
+        }
+
+        @Override
+        public String toString() {
+            return percent < 0 ? bytes + " bytes" : percent + "%";
+        }
+    }
+
+    /**
+     * Receives the notifications on the sampling thread. Implementations should return quickly.
+     */
+    public interface Listener {
+        /**
+         * Available memory dropped below the low watermark.
+         */
+        void onLow(MemoryUsage usage);
+
+        /**
+         * Available memory went back above the high watermark after having been low.
+         */
+        default void onRecovered(MemoryUsage usage) {}
+    }
+
+    /**
+     * One set of watermarks. Close it to unsubscribe.
+     */
+    public final class Subscription implements Closeable {
+        private final Resource resource;
+        private final Watermark low;
+        private final Watermark high;
+        private final Listener listener;
+        private volatile boolean isLow;
+
+        private Subscription(Resource resource, Watermark low, Watermark high, Listener listener) {
+            this.resource = resource;
+            this.low = low;
+            this.high = high;
+            this.listener = listener;
+        }
+
+        /**
+         * Whether the last sample put this subscription in the low state.
+         */
+        public boolean isLow() {
+            return isLow;
+        }
+
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+
+        /**
+         * Synchronized so that each crossing is notified exactly once, and in order, even when samples arrive
+         * from more than one thread.
+         */
+        private synchronized void evaluate(MemoryUsage u) {
+            long total = resource.total(u);
+            long available = resource.available(u);
+            if (available < 0) {
+                return;
+            }
+            long lo = low.resolve(total);
+            long hi = high.resolve(total);
+            if (lo < 0 || hi < 0) {
+                return;
+            }
+            // a percentage and a number of bytes may end up the wrong way around on a small machine
+            hi = Math.max(lo, hi);
+
+            if (!isLow && available < lo) {
+                isLow = true;
+                notify(true, u);
+            } else if (isLow && available > hi) {
+                isLow = false;
+                notify(false, u);
+            }
+        }
+
+        private void notify(boolean low, MemoryUsage u) {
+            try {
+                if (low) {
+                    listener.onLow(u);
+                } else {
+                    listener.onRecovered(u);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Listener " + listener + " failed", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return resource + " low=" + low + " high=" + high;
+        }
+    }
+
+    private final MemorySampler sampler;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Starts listening to the samples of the given sampler, which needs to be started separately.
+     */
+    public MemoryWatermarks(MemorySampler sampler) {
+        this.sampler = sampler;
+        sampler.addListener(this);
+    }
+
+    /**
+     * Subscribes to the crossings of the given watermarks.
+     *
+     * @param low
+     *      {@link Listener#onLow(MemoryUsage)} is called when less than this is available.
+     * @param high
+     *      {@link Listener#onRecovered(MemoryUsage)} is called when more than this is available again.
+     *      Same as {@code low} if there should be no hysteresis.
+     */
+    public Subscription subscribe(Resource resource, Watermark low, Watermark high, Listener listener) {
+        Subscription s = new Subscription(resource, low, high, listener);
+        subscriptions.add(s);
+        return s;
+    }
+
+    @Override
+    public void onSample(MemorySampler.Sample sample) {
+        for (Subscription s : subscriptions) {
+            s.evaluate(sample.usage);
+        }
+    }
+
+    /**
+     * Stops listening to the sampler.
+     */
+    @Override
+    public void close() {
+        sampler.removeListener(this);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryWatermarks.class.getName());
+}
@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Renders {@link MemorySampler.Sample}s in the
+ * <a href="https://github.com/OpenObservability/OpenMetrics/blob/main/specification/OpenMetrics.md">OpenMetrics</a>
+ * text format, for Prometheus to scrape. {@link MemoryMetricsExporter} serves it over HTTP,
+ * and {@link #write} lets it be mounted on any other endpoint.
+ *
+ * <p>
+ * Every metric is a gauge in bytes, named after the {@link MemoryUsage} field, along with the fields of
+ * {@link ExtendedMemoryUsage} when the backend reports them. Unknown (-1) values are left out.
+ *
+ * <p>
+ * A sample is rendered only once into a reused buffer, and every scrape until the next sample gets
+ * the same bytes, so scraping more often doesn't cost more than writing those bytes out.
+ * This class is thread-safe.
+ */
+public final class OpenMetricsWriter {
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    /**
+     * Name, help text and unit of each metric, in the order of {@link MemoryUsageCodec#values}.
+     */
+    private static final String[][] METRICS = {
+        {"physical_total_bytes", "Total physical memory.", "bytes"},
+        {"physical_available_bytes", "Physical memory available without swapping.", "bytes"},
+        {"swap_total_bytes", "Total swap space.", "bytes"},
+        {"swap_available_bytes", "Available swap space.", "bytes"},
+        {"physical_free_bytes", "Physical memory not used for anything at all.", "bytes"},
+        {"buffers_bytes", "Block device buffers.", "bytes"},
+        {"cached_bytes", "Page cache, excluding swap cache.", "bytes"},
+        {"swap_cached_bytes", "Memory that was swapped out and back in, and is still in swap.", "bytes"},
+        {"shmem_bytes", "Shared memory and tmpfs.", "bytes"},
+        {"slab_bytes", "Kernel data structure caches.", "bytes"},
+        {"slab_reclaimable_bytes", "Kernel data structure caches that can be reclaimed.", "bytes"},
+        {"dirty_bytes", "Memory waiting to be written back to disk.", "bytes"},
+        {"writeback_bytes", "Memory being written back to disk.", "bytes"},
+    };
+
+    /**
+     * The <tt># TYPE</tt>, <tt># UNIT</tt> and <tt># HELP</tt> lines of each metric followed by its name,
+     * so that only the value remains to be written.
+     */
+    private final byte[][] headers;
+
+    private final byte[] timestampHeader;
+
+    private static final byte[] EOF = "# EOF\n".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf = new byte[2048];
+    private int len;
+
+    private volatile Rendered rendered;
+
+    /**
+     * Bytes of one sample.
+     */
+    private static final class Rendered {
+        final MemorySampler.Sample sample;
+        final byte[] bytes;
+
+        Rendered(MemorySampler.Sample sample, byte[] bytes) {
+            this.sample = sample;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Names the metrics <tt>memory_*</tt>.
+     */
+    public OpenMetricsWriter() {
+        this("memory_");
+    }
+
+    /**
+     * @param prefix
+     *      Prepended to the name of every metric, such as <tt>jenkins_agent_memory_</tt>.
+     */
+    public OpenMetricsWriter(String prefix) {
+        if (!prefix.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+            throw new IllegalArgumentException("Invalid metric name prefix: " + prefix);
+        }
+        headers = new byte[METRICS.length][];
+        for (int i = 0; i < METRICS.length; i++) {
+            headers[i] = header(prefix + METRICS[i][0], METRICS[i][1], METRICS[i][2]);
+        }
+        timestampHeader = header(prefix + "sample_timestamp_seconds", "When the sample was taken.", "seconds");
+    }
+
+    private static byte[] header(String name, String help, String unit) {
+        return ("# TYPE " + name + " gauge\n" + "# UNIT " + name + " " + unit + "\n" + "# HELP " + name + " " + help
+                        + "\n" + name + " ")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes the given sample, followed by the <tt># EOF</tt> marker.
+     */
+    public void write(MemorySampler.Sample sample, OutputStream out) throws IOException {
+        out.write(render(sample));
+    }
+
+    /**
+     * Returns the rendered bytes of the given sample, which the caller must not modify.
+     */
+    /*package*/ byte[] render(MemorySampler.Sample sample) {
+        Rendered r = rendered;
+        if (r != null && r.sample == sample) {
+            return r.bytes;
+        }
+        synchronized (this) {
+            r = rendered;
+            if (r == null || r.sample != sample) {
+                r = new Rendered(sample, renderNow(sample));
+                rendered = r;
+            }
+            return r.bytes;
+        }
+    }
+
+    private byte[] renderNow(MemorySampler.Sample sample) {
+        len = 0;
+        long[] values = MemoryUsageCodec.values(sample.usage);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] >= 0) {
+                append(headers[i]);
+                appendLong(values[i]);
+                appendByte('\n');
+            }
+        }
+        append(timestampHeader);
+        long t = sample.timestamp;
+        if (t < 0) {
+            appendByte('-');
+            t = -t;
+        }
+        appendLong(t / 1000);
+        appendByte('.');
+        long millis = t % 1000;
+        appendByte('0' + (int) (millis / 100));
+        appendByte('0' + (int) (millis / 10 % 10));
+        appendByte('0' + (int) (millis % 10));
+        appendByte('\n');
+        append(EOF);
+        return Arrays.copyOf(buf, len);
+    }
+
+    private void ensure(int n) {
+        if (len + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        }
+    }
+
+    private void append(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+    }
+
+    private void appendByte(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    /**
+     * Appends a non-negative number without going through a {@link String}.
+     */
+    private void appendLong(long v) {
+        int digits = 1;
+        for (long x = v; x >= 10; x /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = len + digits - 1; i >= len; i--) {
+            buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        len += digits;
+    }
+}
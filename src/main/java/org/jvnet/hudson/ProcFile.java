@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads <tt>key: value [unit]</tt> style files under <tt>/proc</tt> and <tt>/sys</tt>
+ * without allocating per read.
+ *
+ * <p>
+ * The file is opened once and re-read from offset 0 on every call into a buffer
+ * that is kept around, and the requested keys are matched and parsed straight out of
+ * the bytes. Both <tt>MemTotal: 1234 kB</tt> and <tt>inactive_file 1234</tt> lines
+ * are understood. Instances can be shared between threads; reads are serialized.
+ */
+final class ProcFile implements Closeable {
+    private final File file;
+    private final byte[][] keys;
+
+    /**
+     * Parses the content of a file that's in some other format.
+     */
+    interface Parser<T> {
+        /**
+         * @param buf
+         *      The content is in {@code buf[0,len)}. Only valid during the call.
+         */
+        T parse(byte[] buf, int len) throws IOException;
+    }
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    /**
+     * Where to count the bytes read, if anywhere.
+     */
+    private MemoryMonitorStats stats;
+
+    /**
+     * @param keys
+     *      Keys whose values {@link #read(long[])} reports, in that order.
+     *      Trailing ':' is optional.
+     */
+    ProcFile(File file, String... keys) {
+        this.file = file;
+        this.keys = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            String k = keys[i].endsWith(":") ? keys[i].substring(0, keys[i].length() - 1) : keys[i];
+            this.keys[i] = k.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Counts the bytes read into {@link MemoryMonitorStats#getBytesParsed()} of the given backend.
+     *
+     * @return this
+     */
+    ProcFile withStats(MemoryMonitorStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Reads the file and stores the value of each key into the corresponding slot of {@code values},
+     * in bytes if the line has a unit suffix. Keys that don't appear are set to -1.
+     *
+     * @return
+     *      true if at least one key was found.
+     */
+    synchronized boolean read(long[] values) throws IOException {
+        return parse(fill(), values, file);
+    }
+
+    /**
+     * Like {@link #read(long[])}, but reads another file with the same keys and buffer,
+     * such as the same file of another process. That file is not kept open.
+     */
+    synchronized boolean read(File other, long[] values) throws IOException {
+        try (FileChannel c = FileChannel.open(other.toPath(), StandardOpenOption.READ)) {
+            return parse(fill(c), values, other);
+        }
+    }
+
+    private boolean parse(int len, long[] values, File source) throws IOException {
+        Arrays.fill(values, 0, keys.length, -1);
+        byte[] buf = buffer.array();
+
+        boolean found = false;
+        int p = 0;
+        while (p < len) {
+            int eol = p;
+            while (eol < len && buf[eol] != '\n') {
+                eol++;
+            }
+            int i = match(buf, p, eol);
+            if (i >= 0 && values[i] == -1) {
+                values[i] = parseValue(buf, p + keys[i].length, eol, source);
+                found = true;
+            }
+            p = eol + 1;
+        }
+        return found;
+    }
+
+    /**
+     * Reads a file that consists of a single number, such as the ones under <tt>/sys</tt>.
+     *
+     * @return
+     *      the number, or {@link Long#MAX_VALUE} if the file says "max".
+     */
+    synchronized long readValue() throws IOException {
+        int len = fill();
+        byte[] buf = buffer.array();
+        int p = skipBlanks(buf, 0, len);
+        if (len - p >= 3 && buf[p] == 'm' && buf[p + 1] == 'a' && buf[p + 2] == 'x') {
+            return Long.MAX_VALUE;
+        }
+        return parseValue(buf, 0, len, file);
+    }
+
+    /**
+     * Reads the file and hands its raw content to the given parser.
+     */
+    synchronized <T> T read(Parser<T> parser) throws IOException {
+        int len = fill();
+        return parser.parse(buffer.array(), len);
+    }
+
+    /**
+     * Returns the index of the key that the line {@code [s,e)} starts with, or -1.
+     */
+    private int match(byte[] buf, int s, int e) {
+        OUTER:
+        for (int i = 0; i < keys.length; i++) {
+            byte[] k = keys[i];
+            int end = s + k.length;
+            if (end >= e) {
+                continue;
+            }
+            for (int j = 0; j < k.length; j++) {
+                if (buf[s + j] != k[j]) {
+                    continue OUTER;
+                }
+            }
+            byte sep = buf[end];
+            if (sep == ':' || sep == ' ' || sep == '\t') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses "[:] 1234 [kB]" in {@code [s,e)}.
+     */
+    private static long parseValue(byte[] buf, int s, int e, File source) throws IOException {
+        int p = skipBlanks(buf, s, e);
+        if (p < e && buf[p] == ':') {
+            p = skipBlanks(buf, p + 1, e);
+        }
+
+        int start = p;
+        long v = 0;
+        while (p < e && buf[p] >= '0' && buf[p] <= '9') {
+            v = v * 10 + (buf[p++] - '0');
+        }
+        if (p == start) {
+            throw new IOException("Failed to parse '" + new String(buf, s, e - s, StandardCharsets.US_ASCII).trim()
+                    + "' in " + source);
+        }
+
+        p = skipBlanks(buf, p, e);
+        if (e - p >= 2 && (buf[p + 1] | 0x20) == 'b') {
+            switch (buf[p] | 0x20) {
+                case 'k':
+                    return v * 1024;
+                case 'm':
+                    return v * 1024 * 1024;
+                case 'g':
+                    return v * 1024 * 1024 * 1024;
+                default:
+            }
+        }
+        return v;
+    }
+
+    private static int skipBlanks(byte[] buf, int p, int e) {
+        while (p < e && (buf[p] == ' ' || buf[p] == '\t' || buf[p] == '\n')) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Reads the whole file into {@link #buffer}, growing it as needed.
+     *
+     * @return
+     *      number of bytes read.
+     */
+    private int fill() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        try {
+            return fill(channel);
+        } catch (IOException e) {
+            // the file might have gone away, e.g. cgroup removed. start afresh next time
+            close();
+            throw e;
+        }
+    }
+
+    private int fill(FileChannel c) throws IOException {
+        buffer.clear();
+        while (true) {
+            int n = c.read(buffer, buffer.position());
+            if (n < 0) {
+                break;
+            }
+            if (!buffer.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+        if (stats != null) {
+            stats.parsed(buffer.position());
+        }
+        return buffer.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
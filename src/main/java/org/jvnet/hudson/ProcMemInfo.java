@@ -23,76 +23,90 @@
  */
 package org.jvnet.hudson;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * {@link MemoryMonitor} implementation that relies in <tt>/proc/meminfo</tt>
  * @author Kohsuke Kawaguchi
  */
 final class ProcMemInfo extends MemoryMonitor {
-    @Override
-    public MemoryUsage monitor() throws IOException {
-        try (BufferedReader r = new BufferedReader(new FileReader("/proc/meminfo"))) {
-            long[] values = new long[4];
-            Arrays.fill(values, -1);
+    /**
+     * Kept open between calls, so that sampling doesn't produce garbage.
+     */
+    private final ProcFile meminfo;
 
-            String line;
-            while ((line = r.readLine()) != null) {
-                for (int i = 0; i < HEADERS.length; i++) {
-                    if (line.startsWith(HEADERS[i])) {
-                        // found a line that we care about
-                        String s = line.substring(HEADERS[i].length()).trim();
+    private final MemoryMonitorStats.Call<ExtendedMemoryUsage, IOException> collector = this::read;
 
-                        // trim off the suffix, if any
-                        Suffix suffix = Suffix.find(s);
-                        s = s.substring(0, s.length() - suffix.name.length()).trim();
+    ProcMemInfo() {
+        this(new File("/proc/meminfo"));
+    }
 
-                        try {
-                            values[i] = Long.parseLong(s) * suffix.multiplier;
-                        } catch (NumberFormatException e) {
-                            throw new IOException("Failed to parse: '" + s + "' out of '" + line + "'");
-                        }
-                        break;
-                    }
-                }
-            }
+    ProcMemInfo(File meminfo) {
+        this(meminfo, STATS);
+    }
 
-            return new MemoryUsage(values);
-        }
+    /**
+     * @param stats
+     *      Where to count the bytes read, for when this is used as part of another backend.
+     */
+    ProcMemInfo(File meminfo, MemoryMonitorStats stats) {
+        this.meminfo = new ProcFile(meminfo, ExtendedMemoryUsage.FIELDS).withStats(stats);
     }
 
     /**
-     * Lines in <tt>/proc/meminfo</tt> that we care about.
+     * All the fields of {@link ExtendedMemoryUsage} come out of the same read of <tt>/proc/meminfo</tt>.
      */
-    private static final String[] HEADERS = new String[] {"MemTotal:", "MemFree:", "SwapTotal:", "SwapFree:"};
+    @Override
+    public ExtendedMemoryUsage monitor() throws IOException {
+        return STATS.time(collector);
+    }
 
     /**
-     * I've only seen "1234 kB" notation, but just to be safe.
+     * {@link #monitor()} without counting the call in the stats of this backend.
      */
-    private static final Suffix[] SUFFIXES =
-            new Suffix[] {new Suffix("KB", 1024), new Suffix("MB", 1024 * 1024), new Suffix("GB", 1024 * 1024 * 1024)};
+    /*package*/ ExtendedMemoryUsage read() throws IOException {
+        long[] values = new long[ExtendedMemoryUsage.FIELDS.length];
+        meminfo.read(values);
+        return new ExtendedMemoryUsage(values);
+    }
 
-    private static final Suffix NONE = new Suffix("", 1);
+    /**
+     * Completes inline, since reading <tt>/proc/meminfo</tt> doesn't block.
+     */
+    @Override
+    public CompletableFuture<MemoryUsage> monitorAsync(Executor executor) {
+        return monitorInline();
+    }
 
-    private static class Suffix {
-        final String name;
-        final long multiplier;
+    /**
+     * Linux has <tt>/proc/meminfo</tt>. Exactly since when, I don't know.
+     */
+    public static final class Provider extends MemoryMonitorProvider {
+        @Override
+        public int getPriority() {
+            return 500;
+        }
 
-        private Suffix(String name, long multiplier) {
-            this.name = name;
-            this.multiplier = multiplier;
+        @Override
+        public boolean isApplicable() {
+            return new File("/proc/meminfo").exists();
         }
 
-        static Suffix find(String line) {
-            for (Suffix s : SUFFIXES) {
-                if (line.substring(line.length() - s.name.length()).equalsIgnoreCase(s.name)) {
-                    return s;
-                }
+        /**
+         * In a container <tt>/proc/meminfo</tt> shows the host, so the cgroup limit takes precedence.
+         */
+        @Override
+        public MemoryMonitor create() {
+            CGroup cgroup = CGroup.detect();
+            if (cgroup != null) {
+                return cgroup;
             }
-            return NONE;
+            return new ProcMemInfo();
         }
     }
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(ProcMemInfo.class);
 }
@@ -0,0 +1,368 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports the memory used by each process, and by process trees, from <tt>/proc/[pid]</tt> on Linux.
+ *
+ * <p>
+ * RSS and swap come from <tt>/proc/[pid]/status</tt>. Optionally, the proportional set size (PSS),
+ * which splits shared pages between the processes that share them and so adds up correctly over a tree,
+ * comes from <tt>/proc/[pid]/smaps_rollup</tt> (Linux 4.14 and later). That is more expensive to compute
+ * for the kernel, and only readable for processes of the same user unless we are root.
+ *
+ * <p>
+ * The processes are read in parallel on a few threads of the scanner's own, each reusing its buffers
+ * for its share of the processes. Processes that exit during the scan are left out, and values that
+ * can't be read (e.g. for kernel threads) are -1. Close the scanner to stop its threads.
+ */
+public final class ProcessMemoryScanner implements Closeable {
+    /**
+     * Memory used by one process, or the sum over a process tree. Immutable.
+     */
+    public static final class ProcessMemory implements Serializable {
+        public final int pid;
+
+        /**
+         * Parent process ID, 0 for the roots.
+         */
+        public final int ppid;
+
+        /**
+         * Resident set size in bytes.
+         */
+        public final long rss;
+
+        /**
+         * Proportional set size in bytes.
+         */
+        public final long pss;
+
+        /**
+         * Swapped out memory in bytes.
+         */
+        public final long swap;
+
+        /**
+         * Number of processes that these figures cover.
+         */
+        public final int processes;
+
+        public ProcessMemory(int pid, int ppid, long rss, long pss, long swap, int processes) {
+            this.pid = pid;
+            this.ppid = ppid;
+            this.rss = rss;
+            this.pss = pss;
+            this.swap = swap;
+            this.processes = processes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "pid:%d ppid:%d RSS:%dMB PSS:%dMB Swap:%dMB%s",
+                    pid,
+                    ppid,
+                    MemoryUsage.toMB(rss),
+                    MemoryUsage.toMB(pss),
+                    MemoryUsage.toMB(swap),
+                    processes > 1 ? " (" + processes + " processes)" : "");
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The processes as of one scan, and their parent/child relationships.
+     */
+    public static final class Snapshot {
+        private final Map<Integer, ProcessMemory> processes;
+        private final Map<Integer, List<ProcessMemory>> children = new HashMap<>();
+
+        Snapshot(Map<Integer, ProcessMemory> processes) {
+            this.processes = processes;
+            for (ProcessMemory p : processes.values()) {
+                children.computeIfAbsent(p.ppid, k -> new ArrayList<>()).add(p);
+            }
+        }
+
+        public Collection<ProcessMemory> getProcesses() {
+            return Collections.unmodifiableCollection(processes.values());
+        }
+
+        /**
+         * @return
+         *      null if there was no such process at the time of the scan.
+         */
+        public ProcessMemory get(int pid) {
+            return processes.get(pid);
+        }
+
+        public List<ProcessMemory> getChildren(int pid) {
+            return Collections.unmodifiableList(children.getOrDefault(pid, Collections.emptyList()));
+        }
+
+        /**
+         * Sums up the memory of the given process and all of its descendants.
+         * A value is -1 only if it's unknown for all the processes in the tree.
+         *
+         * @return
+         *      null if there was no such process at the time of the scan.
+         */
+        public ProcessMemory getTree(int pid) {
+            ProcessMemory root = processes.get(pid);
+            if (root == null) {
+                return null;
+            }
+            long[] sum = {-1, -1, -1};
+            int count = 0;
+            // a PID reused during the scan could in theory form a cycle
+            Set<Integer> seen = new HashSet<>();
+            Deque<ProcessMemory> todo = new ArrayDeque<>();
+            todo.add(root);
+            seen.add(pid);
+            while (!todo.isEmpty()) {
+                ProcessMemory p = todo.pop();
+                count++;
+                sum[0] = add(sum[0], p.rss);
+                sum[1] = add(sum[1], p.pss);
+                sum[2] = add(sum[2], p.swap);
+                for (ProcessMemory c : children.getOrDefault(p.pid, Collections.emptyList())) {
+                    if (seen.add(c.pid)) {
+                        todo.push(c);
+                    }
+                }
+            }
+            return new ProcessMemory(root.pid, root.ppid, sum[0], sum[1], sum[2], count);
+        }
+
+        private static long add(long sum, long v) {
+            if (v < 0) {
+                return sum;
+            }
+            return sum < 0 ? v : sum + v;
+        }
+    }
+
+    private final File proc;
+    private final boolean pss;
+
+    /**
+     * Reads the processes. Its threads go away when idle, so that a scanner that's used now and then costs nothing.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param pss
+     *      Whether to also read the PSS from <tt>smaps_rollup</tt>.
+     */
+    public ProcessMemoryScanner(boolean pss) {
+        this(new File("/proc"), pss);
+    }
+
+    /*package*/ ProcessMemoryScanner(File proc, boolean pss) {
+        this.proc = proc;
+        this.pss = pss;
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+        this.executor =
+                new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "ProcessMemoryScanner");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the threads. The scanner can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reads all the processes.
+     *
+     * @throws IOException
+     *      if <tt>/proc</tt> can't be listed.
+     */
+    public Snapshot scan() throws IOException {
+        if (executor.isShutdown()) {
+            throw new IllegalStateException("Already closed");
+        }
+        int[] pids = listPids();
+        ProcessMemory[] results = new ProcessMemory[pids.length];
+        int tasks = Math.max(1, Math.min(executor.getMaximumPoolSize(), pids.length / MIN_PER_TASK));
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            int first = t;
+            futures.add(executor.submit(() -> {
+                ProcFile[] r = readers();
+                for (int i = first; i < pids.length; i += tasks) {
+                    results[i] = read(pids[i], r);
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> f : futures) {
+                f.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning " + proc);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to scan " + proc, e.getCause());
+        }
+
+        Map<Integer, ProcessMemory> map = new HashMap<>(pids.length * 2);
+        for (ProcessMemory p : results) {
+            if (p != null) {
+                map.put(p.pid, p);
+            }
+        }
+        return new Snapshot(map);
+    }
+
+    /**
+     * Reads one process.
+     *
+     * @return
+     *      null if the process doesn't exist (anymore).
+     */
+    public ProcessMemory read(int pid) {
+        return read(pid, readers());
+    }
+
+    /**
+     * Buffers for reading processes one after another. The files themselves are opened for each process.
+     */
+    private ProcFile[] readers() {
+        return new ProcFile[] {
+            new ProcFile(new File(proc, "self/status"), "PPid:", "VmRSS:", "VmSwap:"),
+            new ProcFile(new File(proc, "self/smaps_rollup"), "Pss:")
+        };
+    }
+
+    private ProcessMemory read(int pid, ProcFile[] r) {
+        File dir = new File(proc, Integer.toString(pid));
+        long[] status = new long[3];
+        try {
+            if (!r[0].read(new File(dir, "status"), status)) {
+                return null;
+            }
+        } catch (IOException e) {
+            // most likely exited in the meantime
+            LOGGER.log(Level.FINEST, "Failed to read " + dir, e);
+            return null;
+        }
+
+        long p = -1;
+        if (pss) {
+            long[] v = new long[1];
+            try {
+                r[1].read(new File(dir, "smaps_rollup"), v);
+                p = v[0];
+            } catch (IOException e) {
+                // exited, permission denied, or a kernel without smaps_rollup
+                LOGGER.log(Level.FINEST, "Failed to read PSS of " + pid, e);
+            }
+        }
+        return new ProcessMemory(pid, (int) Math.max(status[0], 0), status[1], p, status[2], 1);
+    }
+
+    private int[] listPids() throws IOException {
+        String[] names = proc.list();
+        if (names == null) {
+            throw new IOException("Failed to list " + proc);
+        }
+        int[] pids = new int[names.length];
+        int n = 0;
+        for (String name : names) {
+            int pid = parsePid(name);
+            if (pid > 0) {
+                pids[n++] = pid;
+            }
+        }
+        return Arrays.copyOf(pids, n);
+    }
+
+    /**
+     * @return
+     *      -1 unless the name is all digits.
+     */
+    private static int parsePid(String name) {
+        if (name.isEmpty() || name.length() > 9) {
+            return -1;
+        }
+        int pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+
+    /**
+     * Most threads to read with, as the kernel serializes some of the work anyway.
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Fewest processes worth handing to a thread of their own.
+     */
+    private static final int MIN_PER_TASK = 64;
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessMemoryScanner.class.getName());
+}
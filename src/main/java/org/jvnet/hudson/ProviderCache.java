@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which {@link MemoryMonitorProvider} won the detection on this platform,
+ * keyed by OS name, architecture and version (which is the kernel version on Linux),
+ * so that a restarted JVM can skip the trial runs.
+ *
+ * <p>
+ * The file defaults to <tt>~/.cache/jenkins/memory-monitor.properties</tt>, and can be moved
+ * with the <tt>org.jvnet.hudson.MemoryMonitor.cacheFile</tt> system property. Set it to
+ * an empty string to disable the cache. Failing to read or write the file is not an error.
+ */
+final class ProviderCache {
+    private final File file;
+
+    ProviderCache(File file) {
+        this.file = file;
+    }
+
+    static ProviderCache getDefault() {
+        String path = System.getProperty(MemoryMonitor.class.getName() + ".cacheFile");
+        if (path == null) {
+            String home = System.getProperty("user.home");
+            if (home == null) {
+                return new ProviderCache(null);
+            }
+            return new ProviderCache(new File(home, ".cache/jenkins/memory-monitor.properties"));
+        }
+        return new ProviderCache(path.isEmpty() ? null : new File(path));
+    }
+
+    /**
+     * @return
+     *      Class name of the provider that worked last time on this platform, or null.
+     */
+    synchronized String get() {
+        return load().getProperty(key());
+    }
+
+    synchronized void put(String provider) {
+        if (file == null) {
+            return;
+        }
+        Properties props = load();
+        if (provider.equals(props.getProperty(key()))) {
+            return;
+        }
+        props.setProperty(key(), provider);
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            Files.createDirectories(dir.toPath());
+            // write and rename, so that a concurrently starting JVM never sees a half-written file
+            File tmp = File.createTempFile("memory-monitor", ".tmp", dir);
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                    props.store(out, "Memory monitor backend detected for each platform");
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException | SecurityException e) {
+            LOGGER.log(Level.FINE, "Failed to write " + file, e);
+        }
+    }
+
+    private Properties load() {
+        Properties props = new Properties();
+        if (file != null && file.isFile()) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                props.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.log(Level.FINE, "Failed to read " + file, e);
+            }
+        }
+        return props;
+    }
+
+    private static String key() {
+        return System.getProperty("os.name") + '/' + System.getProperty("os.arch") + '/'
+                + System.getProperty("os.version");
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProviderCache.class.getName());
+}
@@ -24,9 +24,8 @@
 package org.jvnet.hudson;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,89 +36,106 @@ import java.util.regex.Pattern;
  */
 public class Solaris extends AbstractMemoryMonitorImpl {
 
+    private final MemoryMonitorStats.Call<MemoryUsage, IOException> collector = this::collect;
+
     @Override
     public MemoryUsage monitor() throws IOException {
+        return STATS.time(collector);
+    }
+
+    private MemoryUsage collect() throws IOException {
         long[] v = getSwap();
         return new MemoryUsage(getTotalPhysicalMemory(), getAvailablePhysicalMemory(), v[0], v[1]);
     }
 
     private long getTotalPhysicalMemory() throws IOException {
-        Process proc = startProcess("/usr/sbin/prtdiag");
-        try (BufferedReader r =
-                new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                if (line.contains("Memory size:")) {
-                    line = line.substring(line.indexOf(':') + 1).trim();
-                    return parse(line);
-                }
+        return CommandRunner.run(STATS, this::parsePrtdiag, "/usr/sbin/prtdiag");
+    }
+
+    /*package*/ long parsePrtdiag(BufferedReader r) throws IOException {
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.contains("Memory size:")) {
+                line = line.substring(line.indexOf(':') + 1).trim();
+                return parse(line);
             }
-            return -1;
         }
+        return -1;
     }
 
     private long getAvailablePhysicalMemory() throws IOException {
-        Process proc = startProcess("vmstat");
-        try (BufferedReader r =
-                new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                if (NUMBER_ONLY.matcher(line).matches()) {
-                    return Long.parseLong(line.trim().split(" +")[4]) * 1024;
-                }
+        return CommandRunner.run(STATS, this::parseVmstat, "vmstat");
+    }
+
+    /*package*/ long parseVmstat(BufferedReader r) throws IOException {
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (NUMBER_ONLY.matcher(line).matches()) {
+                return Long.parseLong(line.trim().split(" +")[4]) * 1024;
             }
-            return -1;
         }
+        return -1;
     }
 
     /**
      * Returns total/availablae.
      */
     private long[] getSwap() throws IOException {
+        return CommandRunner.run(STATS, this::parseSwap, "/usr/sbin/swap", "-s");
+    }
+
+    /*package*/ long[] parseSwap(BufferedReader r) throws IOException {
         long[] v = new long[] {-1, -1};
-        Process proc = startProcess("/usr/sbin/swap", "-s");
         /* output
 
           $ uname -a; swap -s
           SunOS kohsuke2 5.9 Generic_112233-12 sun4u sparc SUNW,Sun-Blade-2500 Solaris
           total: 800296k bytes allocated + 181784k reserved = 982080k used, 6014528k available
         */
-        try (BufferedReader r =
-                new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()))) {
-            String line = r.readLine();
-            if (line == null) {
-                throw new IOException("no output from /usr/sbin/swap -s");
-            } else {
-                line = line.toLowerCase();
-            }
+        String line = r.readLine();
+        if (line == null) {
+            throw new IOException("no output from /usr/sbin/swap -s");
+        } else {
+            line = line.toLowerCase();
+        }
 
-            Matcher m = USED_SWAP.matcher(line);
-            if (m.find()) {
-                v[0] = Long.parseLong(m.group(1)) * 1024;
-            }
+        Matcher m = USED_SWAP.matcher(line);
+        if (m.find()) {
+            v[0] = Long.parseLong(m.group(1)) * 1024;
+        }
 
-            m = AVAILABLE_SWAP.matcher(line);
-            if (m.find()) {
-                v[1] = Long.parseLong(m.group(1)) * 1024;
-            }
+        m = AVAILABLE_SWAP.matcher(line);
+        if (m.find()) {
+            v[1] = Long.parseLong(m.group(1)) * 1024;
+        }
 
-            // we want total/available, not used/available.
-            if (v[0] != -1 && v[1] != -1) {
-                v[0] += v[1];
-            }
-            return v;
+        // we want total/available, not used/available.
+        if (v[0] != -1 && v[1] != -1) {
+            v[0] += v[1];
         }
+        return v;
     }
 
-    private Process startProcess(String... cmd) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.redirectErrorStream(true);
-        Process proc = pb.start();
-        proc.getOutputStream().close();
-        return proc;
+    public static final class Provider extends MemoryMonitorProvider {
+        @Override
+        public int getPriority() {
+            return 100;
+        }
+
+        @Override
+        public boolean isApplicable() {
+            return new File("/usr/sbin/swap").exists();
+        }
+
+        @Override
+        public MemoryMonitor create() {
+            return new Solaris();
+        }
     }
 
     private static final Pattern NUMBER_ONLY = Pattern.compile("[0-9 ]+");
     private static final Pattern USED_SWAP = Pattern.compile(" ([0-9]+)k used");
     private static final Pattern AVAILABLE_SWAP = Pattern.compile(" ([0-9]+)k available");
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(Solaris.class);
 }
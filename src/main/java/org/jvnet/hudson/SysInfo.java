@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Structure;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link MemoryMonitor} for Linux that calls <tt>sysinfo(2)</tt>, without any file I/O or parsing.
+ *
+ * <p>
+ * The kernel only reports free memory through this call, not the page cache that could be
+ * reclaimed, so {@link MemoryUsage#availablePhysicalMemory} is lower than what {@link ProcMemInfo}
+ * reports based on <tt>MemAvailable</tt>. That's why this is only used where <tt>/proc/meminfo</tt>
+ * can't be read, such as sandboxes without <tt>/proc</tt>.
+ *
+ * <p>
+ * JNA requires that the class and interface be public.
+ */
+public final class SysInfo extends MemoryMonitor {
+    /**
+     * Reused between calls. Guarded by {@code this}.
+     */
+    private final sysinfo info = new sysinfo();
+
+    private final MemoryMonitorStats.Call<MemoryUsage, IOException> collector = this::collect;
+
+    @Override
+    public synchronized MemoryUsage monitor() throws IOException {
+        return STATS.time(collector);
+    }
+
+    private MemoryUsage collect() throws IOException {
+        try {
+            LibC.INSTANCE.sysinfo(info);
+        } catch (LastErrorException e) {
+            throw new IOException("sysinfo failed", e);
+        }
+        long unit = Math.max(info.mem_unit, 1) & 0xFFFFFFFFL;
+        return new MemoryUsage(
+                unsigned(info.totalram) * unit,
+                unsigned(info.freeram) * unit,
+                unsigned(info.totalswap) * unit,
+                unsigned(info.freeswap) * unit);
+    }
+
+    /**
+     * <tt>unsigned long</tt> that might be 32 bits.
+     */
+    private static long unsigned(NativeLong v) {
+        return NativeLong.SIZE == 4 ? v.longValue() & 0xFFFFFFFFL : v.longValue();
+    }
+
+    public static final class Provider extends MemoryMonitorProvider {
+        @Override
+        public int getPriority() {
+            return 450;
+        }
+
+        @Override
+        public boolean isApplicable() {
+            return "Linux".equals(System.getProperty("os.name"));
+        }
+
+        @Override
+        public MemoryMonitor create() {
+            return new SysInfo();
+        }
+    }
+
+    public interface LibC extends Library {
+        int sysinfo(sysinfo info) throws LastErrorException;
+
+        LibC INSTANCE = Native.load("c", LibC.class);
+    }
+
+    @SuppressFBWarnings(
+            value = {"URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD", "UUF_UNUSED_PUBLIC_OR_PROTECTED_FIELD"},
+            justification = "JNA Data Structure")
+    public static final class sysinfo extends Structure {
+        public NativeLong uptime;
+        public NativeLong[] loads = new NativeLong[3];
+        public NativeLong totalram;
+        public NativeLong freeram;
+        public NativeLong sharedram;
+        public NativeLong bufferram;
+        public NativeLong totalswap;
+        public NativeLong freeswap;
+        public short procs;
+        public short pad;
+        public NativeLong totalhigh;
+        public NativeLong freehigh;
+        public int mem_unit;
+        /**
+         * <tt>char _f[20-2*sizeof(long)-sizeof(int)]</tt>, which is 8 bytes on 32-bit platforms
+         * and nothing on 64-bit ones. Reserving it on both is harmless.
+         */
+        public byte[] _f = new byte[8];
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList(
+                    "uptime",
+                    "loads",
+                    "totalram",
+                    "freeram",
+                    "sharedram",
+                    "bufferram",
+                    "totalswap",
+                    "freeswap",
+                    "procs",
+                    "pad",
+                    "totalhigh",
+                    "freehigh",
+                    "mem_unit",
+                    "_f");
+        }
+    }
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(SysInfo.class);
+}
@@ -23,13 +23,12 @@
  */
 package org.jvnet.hudson;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,8 +42,14 @@ final class Top extends AbstractMemoryMonitorImpl {
     private boolean macOsTopFailed;
     private boolean plainTopFailed;
 
+    private final MemoryMonitorStats.Call<MemoryUsage, IOException> collector = this::collect;
+
     @Override
     public MemoryUsage monitor() throws IOException {
+        return STATS.time(collector);
+    }
+
+    private MemoryUsage collect() throws IOException {
         if (!macOsTopFailed) {
             // MacOS X doesn't understand the -b option (for batch mode),
             // moreover to run it in a non-terminal one needs to use the "-l1" option
@@ -57,6 +62,7 @@ final class Top extends AbstractMemoryMonitorImpl {
 
             // if this failed, don't make the same mistake again
             LOGGER.fine("failed: top -S -l1");
+            STATS.fellBack();
             macOsTopFailed = true;
         }
 
@@ -70,6 +76,7 @@ final class Top extends AbstractMemoryMonitorImpl {
 
             // if this failed, don't make the same mistake again
             LOGGER.fine("failed: top");
+            STATS.fellBack();
             plainTopFailed = true;
         }
 
@@ -87,49 +94,82 @@ final class Top extends AbstractMemoryMonitorImpl {
     }
 
     private MemoryUsage monitor(String... args) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(args);
-        pb.redirectErrorStream(true);
-        Process proc = pb.start();
-        proc.getOutputStream().close();
-
         // obtain first 16 lines, then kill 'top'
-        // output is converted to lower case to simplify matching.
-        List<String> lines = new ArrayList<>();
-        {
-            BufferedReader in =
-                    new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()));
-            String line;
-            while ((line = in.readLine()) != null && lines.size() < 16) {
+        List<String> lines = CommandRunner.run(
+                STATS,
+                in -> {
+                    List<String> r = new ArrayList<>();
+                    String line;
+                    while ((line = in.readLine()) != null && r.size() < 16) {
+                        r.add(line);
+                    }
+                    return r;
+                },
+                args);
+
+        return parse(lines);
+    }
+
+    /**
+     * Parses the header of one screen of <tt>top</tt> output.
+     *
+     * <p>
+     * This is done in a single pass over the lines. Each line is dispatched on its prefix
+     * to the {@link #PATTERNS} that can possibly match it, and for each value the first pattern
+     * in {@link #PATTERNS} that matches any line wins.
+     *
+     * @return
+     *      null if no data was found.
+     */
+    /*package*/ synchronized MemoryUsage parse(List<String> lines) throws IOException {
+        Arrays.fill(rank, Integer.MAX_VALUE);
+        Arrays.fill(tokens, null);
+        Arrays.fill(matchedLines, null);
+
+        for (String line : lines) {
+            // output is converted to lower case to simplify matching,
+            // but only for the lines that we are interested in.
+            int c;
+            if (line.indexOf('\u001B') >= 0) {
                 line = ESCAPE_SEQUENCE.matcher(line.toLowerCase()).replaceAll("");
-                LOGGER.fine("| " + line);
-                lines.add(line);
+                c = category(line);
+            } else {
+                c = category(line);
+                if (c >= 0) {
+                    line = line.toLowerCase();
+                }
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("| " + line.toLowerCase());
+            }
+            if (c < 0) {
+                continue;
+            }
+
+            for (int r : RULES[c]) {
+                int slot = r >> 16;
+                int order = r & 0xFF;
+                if (order >= rank[slot]) {
+                    continue; // already found by a pattern that takes precedence
+                }
+                Matcher m = matchers[(r >> 8) & 0xFF].reset(line);
+                if (m.find()) {
+                    // Deal with later versions of procps which split KMG from values
+                    tokens[slot] = m.groupCount() == 2 ? m.group(2) + m.group(1) : m.group(1);
+                    matchedLines[slot] = line;
+                    rank[slot] = order;
+                }
             }
-            proc.destroy();
-            in.close();
         }
 
         long[] values = new long[6];
         Arrays.fill(values, -1);
-
-        OUTER:
-        for (int i = 0; i < PATTERNS.length; i++) {
-            for (Pattern p : PATTERNS[i]) {
-                for (String line : lines) {
-                    try {
-                        Matcher m = p.matcher(line);
-                        if (m.find()) {
-                            if (m.groupCount() == 2) {
-                                // Deal with later versions of procps
-                                // which split KMG from values
-                                values[i] = parse(m.group(2) + m.group(1));
-                            } else {
-                                values[i] = parse(m.group(1));
-                            }
-                            continue OUTER;
-                        }
-                    } catch (NumberFormatException e) {
-                        throw new IOException("Failed to parse " + line);
-                    }
+        for (int i = 0; i < values.length; i++) {
+            if (tokens[i] != null) {
+                try {
+                    values[i] = parse(tokens[i]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Failed to parse " + matchedLines[i]);
                 }
             }
         }
@@ -149,6 +189,45 @@ final class Top extends AbstractMemoryMonitorImpl {
         }
     }
 
+    /**
+     * Which group of {@link #RULES} applies to the given line, or -1 if none.
+     */
+    private static int category(String line) {
+        if (line.regionMatches(true, 0, "mem", 0, 3)) {
+            return MEM;
+        }
+        if (line.regionMatches(true, 0, "swap", 0, 4)) {
+            return SWAP;
+        }
+        if (line.regionMatches(true, 0, "physmem", 0, 7)) {
+            return PHYSMEM;
+        }
+        if (!line.isEmpty() && "kmgKMG".indexOf(line.charAt(0)) >= 0) {
+            return UNIT; // "kb mem:", "kib swap:" and so on
+        }
+        return -1;
+    }
+
+    /**
+     * Uses 'top' if it's available.
+     */
+    public static final class Provider extends MemoryMonitorProvider {
+        @Override
+        public int getPriority() {
+            return 200;
+        }
+
+        @Override
+        public boolean isApplicable() {
+            return File.pathSeparatorChar != ';' && isOnPath("top");
+        }
+
+        @Override
+        public MemoryMonitor create() {
+            return new Top();
+        }
+    }
+
     /*
     On Solaris 10 + top from blastwave
     ==================================
@@ -342,7 +421,61 @@ final class Top extends AbstractMemoryMonitorImpl {
         }
     };
 
+    private static final int MEM = 0;
+    private static final int SWAP = 1;
+    private static final int PHYSMEM = 2;
+    private static final int UNIT = 3;
+
+    /**
+     * {@link #PATTERNS} grouped by the line prefix that they look for.
+     * Each entry packs the value slot, the index into {@link #matchers} and the precedence
+     * of the pattern within its slot as {@code slot << 16 | index << 8 | order}.
+     */
+    private static final int[][] RULES;
+
+    private static final Pattern[] ALL_PATTERNS;
+
+    static {
+        List<Pattern> all = new ArrayList<>();
+        List<List<Integer>> rules = new ArrayList<>();
+        for (int c = 0; c <= UNIT; c++) {
+            rules.add(new ArrayList<>());
+        }
+        for (int slot = 0; slot < PATTERNS.length; slot++) {
+            for (int order = 0; order < PATTERNS[slot].length; order++) {
+                Pattern p = PATTERNS[slot][order];
+                // "^mem...", "^swap...", "^physmem...", "^([kmg])..."
+                String src = p.pattern().substring(1);
+                int c = src.startsWith("(") ? UNIT : category(src);
+                rules.get(c).add(slot << 16 | all.size() << 8 | order);
+                all.add(p);
+            }
+        }
+        RULES = new int[rules.size()][];
+        for (int c = 0; c < RULES.length; c++) {
+            RULES[c] = rules.get(c).stream().mapToInt(Integer::intValue).toArray();
+        }
+        ALL_PATTERNS = all.toArray(new Pattern[0]);
+    }
+
+    /**
+     * One reusable {@link Matcher} for each of {@link #ALL_PATTERNS}, and the state of {@link #parse(List)}.
+     */
+    private final Matcher[] matchers = new Matcher[ALL_PATTERNS.length];
+
+    private final int[] rank = new int[PATTERNS.length];
+    private final String[] tokens = new String[PATTERNS.length];
+    private final String[] matchedLines = new String[PATTERNS.length];
+
+    {
+        for (int i = 0; i < matchers.length; i++) {
+            matchers[i] = ALL_PATTERNS[i].matcher("");
+        }
+    }
+
     private static final Pattern ESCAPE_SEQUENCE = Pattern.compile("\u001B\\[[0-9;]+m");
 
     private static final Logger LOGGER = Logger.getLogger(Top.class.getName());
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(Top.class);
 }
@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2008-2011, Sun Microsystems, Inc., Kohsuke Kawaguchi,
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jvnet.hudson;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * {@link MemoryMonitor} that keeps one <tt>top</tt> running in batch mode with a refresh delay,
+ * and parses every screen as it arrives, instead of starting a new <tt>top</tt> for every sample
+ * like {@link Top} does.
+ *
+ * <p>
+ * {@link #monitor()} returns the values from the latest screen. If <tt>top</tt> exits or stops producing
+ * output, it is restarted.
+ */
+public final class TopStream extends MemoryMonitor implements Closeable {
+    private final long delaySeconds;
+    private final Top parser = new Top();
+
+    private volatile MemorySampler.Sample latest;
+    private volatile boolean closed;
+
+    /**
+     * Released when the first screen is published, or when closed.
+     */
+    private final CountDownLatch firstScreen = new CountDownLatch(1);
+
+    /**
+     * Reads the output of <tt>top</tt>, while the supervisor waits for it to exit.
+     */
+    private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TopStream reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The command line that worked last time, or -1.
+     */
+    private int candidate = -1;
+
+    private Process proc;
+    private Thread supervisor;
+
+    /**
+     * @param delay
+     *      Refresh delay to pass to <tt>top</tt>. Rounded up to whole seconds.
+     */
+    public TopStream(long delay, TimeUnit unit) {
+        this.delaySeconds = Math.max(1, (unit.toMillis(delay) + 999) / 1000);
+    }
+
+    /**
+     * Starts <tt>top</tt> in the background. Calling this method more than once has no effect.
+     *
+     * @return this
+     */
+    public synchronized TopStream start() {
+        if (supervisor == null && !closed) {
+            supervisor = new Thread(this::supervise, "TopStream supervisor");
+            supervisor.setDaemon(true);
+            supervisor.start();
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = supervisor;
+            supervisor = null;
+            if (proc != null) {
+                proc.destroy();
+            }
+            reader.shutdownNow();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        firstScreen.countDown();
+    }
+
+    /**
+     * Returns the values from the latest screen.
+     *
+     * @return
+     *      null if <tt>top</tt> hasn't produced any usable output yet.
+     */
+    public MemorySampler.Sample getLatest() {
+        return latest;
+    }
+
+    /**
+     * Returns the values from the latest screen, waiting a little for the first one if necessary.
+     */
+    @Override
+    public MemoryUsage monitor() throws IOException {
+        start();
+        try {
+            firstScreen.await(FIRST_SCREEN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for 'top'", e);
+        }
+        MemorySampler.Sample s = latest;
+        if (s == null) {
+            throw new IOException("'top' unavailable");
+        }
+        return s.usage;
+    }
+
+    /**
+     * Completes inline with the latest screen if there is one.
+     */
+    @Override
+    public CompletableFuture<MemoryUsage> monitorAsync(Executor executor) {
+        start();
+        MemorySampler.Sample s = latest;
+        if (s != null) {
+            return CompletableFuture.completedFuture(s.usage);
+        }
+        return super.monitorAsync(executor);
+    }
+
+    /**
+     * Keeps a <tt>top</tt> running until closed.
+     */
+    private void supervise() {
+        String[][] commands = commands();
+        int failures = 0;
+        while (!closed) {
+            int c = candidate >= 0 ? candidate : failures % commands.length;
+            boolean producedData = false;
+            try {
+                producedData = run(commands[c]);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to run " + String.join(" ", commands[c]), e);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (producedData) {
+                candidate = c;
+                failures = 0;
+            } else {
+                // never worked, or doesn't work anymore. try the other ones
+                candidate = -1;
+                failures++;
+            }
+
+            try {
+                // don't spin if nothing works, but come back quickly if 'top' just died
+                long wait = failures == 0 ? delaySeconds : failures % commands.length == 0 ? 60 : 0;
+                TimeUnit.SECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one <tt>top</tt> and parses its output until it exits, killing it if it stops producing screens.
+     *
+     * @return
+     *      true if it produced any data.
+     */
+    private boolean run(String[] cmd) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+        Process p;
+        Future<Boolean> output;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            p = pb.start();
+            proc = p;
+            output = reader.submit(() -> {
+                try (BufferedReader in =
+                        new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset()))) {
+                    return read(in);
+                }
+            });
+        }
+        STATS.spawned();
+        p.getOutputStream().close();
+        LOGGER.fine("Started " + String.join(" ", cmd));
+
+        try {
+            long stale = TimeUnit.SECONDS.toMillis(delaySeconds * 3 + FIRST_SCREEN_TIMEOUT);
+            long started = System.currentTimeMillis();
+            while (!p.waitFor(delaySeconds, TimeUnit.SECONDS)) {
+                MemorySampler.Sample s = latest;
+                long last = s == null || s.timestamp < started ? started : s.timestamp;
+                if (System.currentTimeMillis() - last > stale) {
+                    LOGGER.fine("'top' stopped producing output; restarting");
+                    p.destroyForcibly();
+                }
+            }
+            LOGGER.fine(String.join(" ", cmd) + " exited");
+            // the rest of the output, up to the end of the stream
+            return output.get();
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            throw t instanceof IOException ? (IOException) t : new IOException(t);
+        } finally {
+            p.destroy();
+            synchronized (this) {
+                if (proc == p) {
+                    proc = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the output of <tt>top</tt> into screens and publishes the header of each one as it completes.
+     *
+     * @return
+     *      true if any screen had data.
+     */
+    /*package*/ boolean read(BufferedReader in) throws IOException {
+        boolean producedData = false;
+        List<String> screen = new ArrayList<>();
+        // true while we are reading the header part of a screen, which has the memory figures
+        boolean inHeader = true;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (SCREEN_START.matcher(line).find()) {
+                producedData |= publish(screen);
+                inHeader = true;
+            }
+            if (!inHeader) {
+                continue;
+            }
+            if (line.trim().toLowerCase(Locale.ENGLISH).startsWith("pid") || screen.size() >= 16) {
+                // reached the process table
+                producedData |= publish(screen);
+                inHeader = false;
+                continue;
+            }
+            screen.add(line);
+        }
+        producedData |= publish(screen);
+        return producedData;
+    }
+
+    /**
+     * Parses one screen worth of header lines and clears them.
+     *
+     * @return
+     *      true if it had data.
+     */
+    private boolean publish(List<String> screen) throws IOException {
+        if (screen.isEmpty()) {
+            return false;
+        }
+        MemoryUsage usage = parser.parse(screen);
+        screen.clear();
+        if (usage == null) {
+            return false;
+        }
+        latest = new MemorySampler.Sample(usage, System.currentTimeMillis());
+        firstScreen.countDown();
+        return true;
+    }
+
+    private String[][] commands() {
+        String d = String.valueOf(delaySeconds);
+        return new String[][] {
+            // Mac OS X: unlimited number of samples with the given interval
+            {"top", "-S", "-l", "0", "-s", d},
+            // FreeBSD and unixtop. The number of displays can't be unlimited in batch mode
+            {"top", "-b", "-s", d, "-d", "1000000"},
+            // Linux procps
+            {"top", "-b", "-d", d},
+        };
+    }
+
+    /**
+     * First line of a screen in the various flavors of 'top'.
+     */
+    private static final Pattern SCREEN_START =
+            Pattern.compile("^(?:top - |processes:|last pid:)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Seconds to wait for 'top' to show the first screen.
+     */
+    private static final long FIRST_SCREEN_TIMEOUT = 10;
+
+    private static final Logger LOGGER = Logger.getLogger(TopStream.class.getName());
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(TopStream.class);
+}
@@ -27,8 +27,11 @@ import com.sun.jna.Native;
 import com.sun.jna.Structure;
 import com.sun.jna.win32.StdCallLibrary;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * {@link MemoryMonitor} implementation for Windows.
@@ -39,8 +42,14 @@ import java.util.List;
  * @author Kohsuke Kawaguchi
  */
 public final class Windows extends MemoryMonitor {
+    private final MemoryMonitorStats.Call<MemoryUsage, RuntimeException> collector = this::collect;
+
     @Override
     public MemoryUsage monitor() {
+        return STATS.time(collector);
+    }
+
+    private MemoryUsage collect() {
         MEMORYSTATUSEX mse = new MEMORYSTATUSEX();
         Kernel32.INSTANCE.GlobalMemoryStatusEx(mse);
         mse.read();
@@ -50,6 +59,31 @@ public final class Windows extends MemoryMonitor {
                 mse.ullTotalPageFile, mse.ullAvailPageFile);
     }
 
+    /**
+     * Completes inline, since <tt>GlobalMemoryStatusEx</tt> doesn't block.
+     */
+    @Override
+    public CompletableFuture<MemoryUsage> monitorAsync(Executor executor) {
+        return monitorInline();
+    }
+
+    public static final class Provider extends MemoryMonitorProvider {
+        @Override
+        public int getPriority() {
+            return 600;
+        }
+
+        @Override
+        public boolean isApplicable() {
+            return File.pathSeparatorChar == ';';
+        }
+
+        @Override
+        public MemoryMonitor create() {
+            return new Windows();
+        }
+    }
+
     public interface Kernel32 extends StdCallLibrary {
         boolean GlobalMemoryStatusEx(MEMORYSTATUSEX p);
 
@@ -84,4 +118,6 @@ public final class Windows extends MemoryMonitor {
                     "ullAvailExtendedVirtual");
         }
     }
+
+    private static final MemoryMonitorStats STATS = MemoryMonitorStats.of(Windows.class);
 }
@@ -0,0 +1,30 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class AixTest {
+
+    private final Aix aix = new Aix();
+
+    @Test
+    void lsps() throws IOException {
+        long total = 45568L * 1024 * 1024;
+        assertArrayEquals(new long[] {total, total / 100 * 83}, aix.parseLsps(open("lsps-s.txt")));
+    }
+
+    @Test
+    void vmstat() throws IOException {
+        assertArrayEquals(new long[] {25920L * 1024 * 1024, 96970L * 4096}, aix.parseVmstat(open("vmstat.txt")));
+    }
+
+    private static BufferedReader open(String name) {
+        return new BufferedReader(
+                new InputStreamReader(AixTest.class.getResourceAsStream("aix/" + name), StandardCharsets.UTF_8));
+    }
+}
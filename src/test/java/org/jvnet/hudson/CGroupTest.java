@@ -0,0 +1,115 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CGroupTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void v2() throws IOException {
+        File root = new File(tmp, "cgroup");
+        write(root, "cgroup.controllers", "cpu memory\n");
+        write(root, "kubepods/pod1/memory.max", "max\n");
+        File c = new File(root, "kubepods/pod1/ctr");
+        write(c, "memory.max", String.valueOf(512 * MB));
+        write(c, "memory.current", String.valueOf(300 * MB));
+        write(c, "memory.stat", "anon 1234\ninactive_file " + 100 * MB + "\nactive_file 5\n");
+        write(c, "memory.swap.max", String.valueOf(64 * MB));
+        write(c, "memory.swap.current", String.valueOf(16 * MB));
+
+        MemoryUsage m = detect(root, "0::/kubepods/pod1/ctr\n").monitor();
+        assertEquals(512 * MB, m.totalPhysicalMemory);
+        assertEquals(312 * MB, m.availablePhysicalMemory);
+        assertEquals(64 * MB, m.totalSwapSpace);
+        assertEquals(48 * MB, m.availableSwapSpace);
+    }
+
+    @Test
+    void v2LimitOnAncestorAndNamespacedPath() throws IOException {
+        File root = new File(tmp, "cgroup");
+        write(root, "cgroup.controllers", "memory\n");
+        write(root, "memory.max", String.valueOf(256 * MB));
+        write(root, "memory.current", String.valueOf(128 * MB));
+        write(root, "memory.stat", "inactive_file 0\n");
+
+        // path on the host isn't visible inside the container, and there's no swap accounting
+        MemoryUsage m = detect(root, "0::/system.slice/docker-123.scope\n").monitor();
+        assertEquals(256 * MB, m.totalPhysicalMemory);
+        assertEquals(128 * MB, m.availablePhysicalMemory);
+        assertEquals(2048 * MB, m.totalSwapSpace);
+        assertEquals(1024 * MB, m.availableSwapSpace);
+    }
+
+    @Test
+    void v2Unlimited() throws IOException {
+        File root = new File(tmp, "cgroup");
+        write(root, "cgroup.controllers", "memory\n");
+        write(root, "user.slice/memory.max", "max\n");
+        assertNull(detect(root, "0::/user.slice\n"));
+    }
+
+    @Test
+    void v1() throws IOException {
+        File root = new File(tmp, "cgroup");
+        write(root, "memory/memory.limit_in_bytes", "9223372036854771712\n");
+        File c = new File(root, "memory/docker/abc");
+        write(c, "memory.limit_in_bytes", String.valueOf(1024 * MB));
+        write(c, "memory.usage_in_bytes", String.valueOf(900 * MB));
+        write(c, "memory.stat", "inactive_file 1\ntotal_inactive_file " + 200 * MB + "\n");
+        write(c, "memory.memsw.limit_in_bytes", String.valueOf(1536 * MB));
+        write(c, "memory.memsw.usage_in_bytes", String.valueOf(1000 * MB));
+
+        MemoryUsage m = detect(root, "5:cpu,cpuacct:/docker/abc\n4:memory:/docker/abc\n0::/\n")
+                .monitor();
+        assertEquals(1024 * MB, m.totalPhysicalMemory);
+        assertEquals(324 * MB, m.availablePhysicalMemory);
+        assertEquals(512 * MB, m.totalSwapSpace);
+        assertEquals(412 * MB, m.availableSwapSpace);
+    }
+
+    @Test
+    void v1AboveHostMemory() throws IOException {
+        File root = new File(tmp, "cgroup");
+        write(root, "memory/memory.limit_in_bytes", String.valueOf(8192 * MB));
+        assertNull(detect(root, "4:memory:/\n"));
+    }
+
+    @Test
+    void noCgroupfs() throws IOException {
+        assertNull(detect(new File(tmp, "nothing"), "0::/\n"));
+    }
+
+    private CGroup detect(File root, String self) throws IOException {
+        File selfCgroup = write(tmp, "self-cgroup", self);
+        File meminfo = write(
+                tmp,
+                "meminfo",
+                "MemTotal: 4194304 kB\nMemFree: 1048576 kB\nMemAvailable: 3145728 kB\n"
+                        + "SwapTotal: 2097152 kB\nSwapFree: 1048576 kB\n");
+        CGroup c = CGroup.detect(root, selfCgroup, meminfo);
+        if (c != null) {
+            assertNotNull(c.monitor());
+        }
+        return c;
+    }
+
+    private static File write(File dir, String name, String content) throws IOException {
+        File f = new File(dir, name);
+        Files.createDirectories(f.getParentFile().toPath());
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return f;
+    }
+}
@@ -0,0 +1,88 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CommandRunnerTest {
+
+    @BeforeEach
+    void unixOnly() {
+        assumeFalse(File.pathSeparatorChar == ';', "Windows cannot run this test");
+    }
+
+    @Test
+    void output() throws IOException {
+        String s = CommandRunner.run(10, TimeUnit.SECONDS, r -> r.readLine(), "sh", "-c", "echo hello; echo oops >&2");
+        assertEquals("hello", s);
+    }
+
+    @Test
+    void stderrIsMerged() throws IOException {
+        String s = CommandRunner.run(10, TimeUnit.SECONDS, r -> r.readLine(), "sh", "-c", "echo oops >&2");
+        assertEquals("oops", s);
+    }
+
+    @Test
+    void timeout() throws Exception {
+        long start = System.nanoTime();
+        CommandTimeoutException e = assertThrows(
+                CommandTimeoutException.class,
+                () -> CommandRunner.run(200, TimeUnit.MILLISECONDS, r -> r.readLine(), "sleep", "30"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals("sleep 30", e.getCommand());
+        assertEquals(200, e.getTimeoutMillis());
+        assertNoChildren();
+    }
+
+    @Test
+    void earlyReturnKillsProcess() throws Exception {
+        String s = CommandRunner.run(10, TimeUnit.SECONDS, r -> r.readLine(), "sh", "-c", "echo first; exec sleep 30");
+        assertEquals("first", s);
+        assertNoChildren();
+    }
+
+    @Test
+    void parserFailure() {
+        IOException e = assertThrows(
+                IOException.class,
+                () -> CommandRunner.run(10, TimeUnit.SECONDS, r -> {
+                    throw new IOException("bad output");
+                }, "echo"));
+        assertEquals("bad output", e.getMessage());
+    }
+
+    @Test
+    void noSuchCommand() {
+        assertThrows(IOException.class, () -> CommandRunner.run(r -> r.readLine(), "no-such-command-xyzzy"));
+    }
+
+    @Test
+    void interrupt() {
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(
+                    InterruptedIOException.class,
+                    () -> CommandRunner.run(10, TimeUnit.SECONDS, r -> r.readLine(), "sleep", "30"));
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private static void assertNoChildren() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ProcessHandle.current().children().anyMatch(ProcessHandle::isAlive)) {
+            assertTrue(System.nanoTime() < deadline, "child process left behind");
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedMemoryHistoryTest {
+
+    @TempDir
+    File tmp;
+
+    private static MemoryUsage usage(long t) {
+        return new MemoryUsage(1000, t, 500, 500 - t);
+    }
+
+    @Test
+    void survivesReopen() throws IOException {
+        File f = new File(tmp, "h");
+        try (MappedMemoryHistory h = MappedMemoryHistory.open(f, 8)) {
+            assertEquals(List.of(), h.getSamples());
+            for (int t = 1; t <= 5; t++) {
+                h.add(t * 10, usage(t));
+            }
+            h.add(60, new ExtendedMemoryUsage(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13));
+        }
+
+        try (MappedMemoryHistory h = MappedMemoryHistory.open(f, 8)) {
+            List<MemorySampler.Sample> s = h.getSamples();
+            assertEquals(6, s.size());
+            assertEquals(10, s.get(0).timestamp);
+            assertEquals(1, s.get(0).usage.availablePhysicalMemory);
+            assertEquals(499, s.get(0).usage.availableSwapSpace);
+            MemoryUsageCodecTest.assertSameValues(
+                    new ExtendedMemoryUsage(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13), s.get(5).usage);
+
+            // carries on where it left off, and wraps around
+            for (int t = 7; t <= 20; t++) {
+                h.add(t * 10, usage(t));
+            }
+            s = h.getSamples();
+            assertEquals(8, s.size());
+            assertEquals(130, s.get(0).timestamp);
+            assertEquals(200, s.get(7).timestamp);
+            assertEquals(3, h.getSamples(150, 180).size());
+        }
+    }
+
+    @Test
+    void tornRecord() throws IOException {
+        File f = new File(tmp, "h");
+        try (MappedMemoryHistory h = MappedMemoryHistory.open(f, 8)) {
+            for (int t = 1; t <= 3; t++) {
+                h.add(t, usage(t));
+            }
+        }
+        // as if the JVM died halfway through writing record 3, which is in slot 3
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(64 + 3 * 128 + 40);
+            raf.writeLong(12345);
+        }
+
+        try (MappedMemoryHistory h = MappedMemoryHistory.open(f, 8)) {
+            assertEquals(2, h.getSamples().size());
+            h.add(4, usage(4));
+            List<MemorySampler.Sample> s = h.getSamples();
+            assertEquals(3, s.size());
+            assertEquals(4, s.get(2).timestamp);
+        }
+    }
+
+    @Test
+    void concurrentReader() throws Exception {
+        File f = new File(tmp, "h");
+        try (MappedMemoryHistory w = MappedMemoryHistory.open(f, 16);
+                MappedMemoryHistory r = MappedMemoryHistory.openReadOnly(f)) {
+            assertThrows(IllegalStateException.class, () -> r.add(1, usage(1)));
+
+            AtomicBoolean done = new AtomicBoolean();
+            Thread writer = new Thread(() -> {
+                for (int t = 1; t <= 200_000; t++) {
+                    w.add(t, usage(t % 400));
+                }
+                done.set(true);
+            });
+            writer.start();
+            int reads = 0;
+            while (!done.get() || reads == 0) {
+                long last = 0;
+                for (MemorySampler.Sample s : r.getSamples()) {
+                    // never a torn record
+                    assertEquals(s.timestamp % 400, s.usage.availablePhysicalMemory);
+                    assertEquals(500 - s.timestamp % 400, s.usage.availableSwapSpace);
+                    assertTrue(s.timestamp > last);
+                    last = s.timestamp;
+                }
+                reads++;
+            }
+            writer.join();
+            assertEquals(16, r.getSamples().size());
+            assertEquals(200_000, r.getSamples().get(15).timestamp);
+        }
+    }
+
+    @Test
+    void singleWriter() throws IOException {
+        File f = new File(tmp, "h");
+        try (MappedMemoryHistory h = MappedMemoryHistory.open(f, 8)) {
+            assertThrows(IOException.class, () -> MappedMemoryHistory.open(f, 8));
+        }
+        assertThrows(IOException.class, () -> MappedMemoryHistory.open(f, 16));
+        MappedMemoryHistory.open(f, 8).close();
+    }
+
+    @Test
+    void notAHistory() throws IOException {
+        File f = new File(tmp, "h");
+        Files.writeString(f.toPath(), "hello", StandardCharsets.US_ASCII);
+        assertThrows(IOException.class, () -> MappedMemoryHistory.openReadOnly(f));
+        assertThrows(IOException.class, () -> MappedMemoryHistory.open(f, 8));
+    }
+}
@@ -0,0 +1,193 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.MemoryFleet.Entry;
+import org.jvnet.hudson.MemoryFleet.Metric;
+
+class MemoryFleetTest {
+
+    private static MemoryUsage usage(long available, long swapUsed) {
+        return new MemoryUsage(1000, available, 500, 500 - swapUsed);
+    }
+
+    private static List<String> nodes(List<Entry> entries) {
+        return entries.stream().map(e -> e.node).collect(Collectors.toList());
+    }
+
+    @Test
+    void queries() {
+        MemoryFleet fleet = new MemoryFleet(1, TimeUnit.SECONDS);
+        fleet.update("a", usage(300, 10));
+        fleet.update("b", usage(100, 400));
+        fleet.update("c", usage(200, 0));
+        fleet.update("d", usage(100, 50));
+        assertEquals(4, fleet.size());
+
+        assertEquals(List.of("b", "d", "c"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 3)));
+        assertEquals(List.of("b", "d"), nodes(fleet.highest(Metric.USED_SWAP_SPACE, 2)));
+        assertEquals(List.of("b", "d"), nodes(fleet.below(Metric.AVAILABLE_PHYSICAL_MEMORY, 200)));
+        assertEquals(List.of("a", "c"), nodes(fleet.above(Metric.AVAILABLE_PHYSICAL_MEMORY, 100)));
+        assertEquals(List.of(), nodes(fleet.below(Metric.AVAILABLE_PHYSICAL_MEMORY, 100)));
+        assertEquals(4, fleet.lowest(Metric.USED_PHYSICAL_MEMORY, 100).size());
+
+        // moves within the index
+        fleet.update("a", usage(50, 10));
+        assertEquals(List.of("a", "b", "d", "c"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+        assertEquals(List.of("c", "d", "b", "a"), nodes(fleet.highest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+
+        fleet.remove("b");
+        assertNull(fleet.get("b"));
+        assertEquals(3, fleet.size());
+        assertEquals(List.of("a", "d", "c"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+
+        // reuses the slot of b
+        fleet.update("e", usage(75, 0));
+        assertEquals(List.of("a", "e", "d", "c"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+    }
+
+    @Test
+    void unknownValuesAreNotIndexed() {
+        MemoryFleet fleet = new MemoryFleet(1, TimeUnit.SECONDS);
+        fleet.update("a", new MemoryUsage(1000, 100, -1, -1));
+        fleet.update("b", usage(200, 100));
+        assertEquals(List.of("b"), nodes(fleet.highest(Metric.USED_SWAP_SPACE, 10)));
+        assertEquals(List.of("a", "b"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+
+        fleet.update("a", new MemoryUsage(1000, -1, 500, 0));
+        assertEquals(List.of("b"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+        assertEquals(List.of("a", "b"), nodes(fleet.highest(Metric.USED_SWAP_SPACE, 10)));
+    }
+
+    @Test
+    void refresh() throws Exception {
+        MemoryFleet fleet = new MemoryFleet(200, TimeUnit.MILLISECONDS);
+        MemoryUsage first = usage(1, 1);
+        fleet.register("ok", () -> CompletableFuture.completedFuture(first));
+        fleet.register("async", () -> CompletableFuture.supplyAsync(() -> usage(2, 2)));
+        fleet.register("failing", () -> CompletableFuture.failedFuture(new RuntimeException("oops")));
+        fleet.register("throwing", () -> {
+            throw new IllegalStateException("oops");
+        });
+        CompletableFuture<MemoryUsage> hung = new CompletableFuture<>();
+        fleet.register("hung", () -> hung);
+        fleet.register("local", MemoryFleet.Source.of(new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() {
+                return usage(3, 3);
+            }
+        }));
+
+        fleet.refresh().get(10, TimeUnit.SECONDS);
+        assertTrue(hung.isCancelled());
+        assertEquals(3, fleet.size());
+        assertSame(first, fleet.get("ok").usage);
+        assertEquals(List.of("ok", "async", "local"), nodes(fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 10)));
+
+        // a failure keeps the previous data
+        fleet.register("ok", () -> CompletableFuture.failedFuture(new RuntimeException("oops")));
+        fleet.refresh().get(10, TimeUnit.SECONDS);
+        assertSame(first, fleet.get("ok").usage);
+    }
+
+    @Test
+    void lateResponse() {
+        MemoryFleet fleet = new MemoryFleet(1, TimeUnit.SECONDS);
+        MemoryFleet.Source a = () -> CompletableFuture.completedFuture(usage(1, 1));
+        MemoryFleet.Source b = () -> CompletableFuture.completedFuture(usage(2, 2));
+        fleet.register("n", a);
+        fleet.update("n", usage(1, 1), a);
+        assertEquals(1, fleet.size());
+
+        // the response of a source that has since been replaced
+        fleet.register("n", b);
+        fleet.update("n", usage(3, 3), a);
+        assertEquals(1, fleet.get("n").usage.availablePhysicalMemory);
+
+        // the response of a node that has since been removed
+        fleet.remove("n");
+        fleet.update("n", usage(2, 2), b);
+        assertNull(fleet.get("n"));
+        assertEquals(0, fleet.size());
+    }
+
+    @Test
+    void negativeK() {
+        MemoryFleet fleet = new MemoryFleet(1, TimeUnit.SECONDS);
+        fleet.update("a", usage(1, 1));
+        assertThrows(IllegalArgumentException.class, () -> fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, -1));
+        assertThrows(IllegalArgumentException.class, () -> fleet.highest(Metric.AVAILABLE_PHYSICAL_MEMORY, -1));
+        assertEquals(List.of(), fleet.lowest(Metric.AVAILABLE_PHYSICAL_MEMORY, 0));
+    }
+
+    @Test
+    void start() throws Exception {
+        CompletableFuture<Void> called = new CompletableFuture<>();
+        try (MemoryFleet fleet = new MemoryFleet(1, TimeUnit.SECONDS)) {
+            fleet.register("a", () -> {
+                called.complete(null);
+                return CompletableFuture.completedFuture(usage(1, 1));
+            });
+            fleet.start(1, TimeUnit.HOURS);
+            called.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Checks the index against sorting everything by hand.
+     */
+    @Test
+    void random() {
+        MemoryFleet fleet = new MemoryFleet(1, TimeUnit.SECONDS);
+        Map<String, MemoryUsage> expected = new HashMap<>();
+        Random r = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String node = "n" + r.nextInt(300);
+            if (r.nextInt(10) == 0) {
+                fleet.remove(node);
+                expected.remove(node);
+            } else {
+                // few distinct values, so that there are plenty of ties
+                MemoryUsage u = usage(r.nextInt(20), r.nextInt(20));
+                fleet.update(node, u);
+                expected.put(node, u);
+            }
+        }
+        assertEquals(expected.size(), fleet.size());
+
+        for (Metric m : Metric.values()) {
+            List<String> sorted = new ArrayList<>(expected.keySet());
+            sorted.sort(Comparator.comparingLong(n -> m.value(expected.get(n))));
+            List<Long> values =
+                    sorted.stream().map(n -> m.value(expected.get(n))).collect(Collectors.toList());
+
+            assertEquals(values, values(m, fleet.lowest(m, Integer.MAX_VALUE)));
+            assertEquals(values.subList(0, 10), values(m, fleet.lowest(m, 10)));
+            List<Long> top = values.subList(values.size() - 10, values.size());
+            List<Long> reversed = new ArrayList<>(top);
+            Collections.reverse(reversed);
+            assertEquals(reversed, values(m, fleet.highest(m, 10)));
+            assertEquals(values.stream().filter(v -> v < 7).count(), fleet.below(m, 7).size());
+            assertEquals(values.stream().filter(v -> v > 7).count(), fleet.above(m, 7).size());
+        }
+    }
+
+    private static List<Long> values(Metric m, List<Entry> entries) {
+        return entries.stream().map(e -> m.value(e.usage)).collect(Collectors.toList());
+    }
+}
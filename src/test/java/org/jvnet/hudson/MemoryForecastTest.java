@@ -0,0 +1,105 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.MemoryForecast.Estimate;
+import org.jvnet.hudson.MemoryWatermarks.Resource;
+import org.jvnet.hudson.MemoryWatermarks.Watermark;
+
+class MemoryForecastTest {
+
+    private static final long GB = 1L << 30;
+
+    @Test
+    void steadyDecline() {
+        MemoryForecast f = new MemoryForecast(5, TimeUnit.MINUTES);
+        Random r = new Random(1);
+        // 1MB/s down from 4GB, give or take 20MB of noise
+        for (int s = 0; s <= 600; s += 5) {
+            long available = 4 * GB - s * (1L << 20) + (long) (r.nextGaussian() * 20_000_000);
+            f.add(1_000_000 + s * 1000L, new MemoryUsage(8 * GB, available, 2 * GB, 2 * GB));
+        }
+        Estimate e = f.estimate(Resource.PHYSICAL_MEMORY);
+        assertEquals(1_600_000, e.getTimestamp());
+        assertEquals(-(1 << 20), e.getSlope(), (1 << 20) * 0.1);
+        assertEquals(4 * GB - 600 * (1L << 20), e.getLevel(), 30_000_000);
+        // 3.4GB left at 1MB/s
+        assertEquals(3496, e.getSecondsToFloor(), 350);
+        assertTrue(e.getConfidence() > 0.99, e.toString());
+
+        f.setFloor(Resource.PHYSICAL_MEMORY, Watermark.percent(25));
+        e = f.estimate(Resource.PHYSICAL_MEMORY);
+        assertEquals(2 * GB, e.getFloor());
+        assertEquals(3496 - 2048, e.getSecondsToFloor(), 350);
+
+        // swap doesn't move
+        e = f.estimate(Resource.SWAP);
+        assertEquals(Long.MAX_VALUE, e.getSecondsToFloor());
+        assertEquals(0.5, e.getConfidence(), 1e-9);
+    }
+
+    @Test
+    void noise() {
+        MemoryForecast f = new MemoryForecast(5, TimeUnit.MINUTES);
+        Random r = new Random(2);
+        int confident = 0;
+        for (int s = 0; s <= 3600; s += 5) {
+            f.add(s * 1000L, new MemoryUsage(8 * GB, 4 * GB + (long) (r.nextGaussian() * 100_000_000), -1, -1));
+            if (s > 60 && f.estimate(Resource.PHYSICAL_MEMORY).getConfidence() > 0.99) {
+                confident++;
+            }
+        }
+        // a flat line through noise is rarely mistaken for a decline
+        assertTrue(confident < 20, confident + " false alarms");
+        assertEquals(-1, f.estimate(Resource.SWAP).getSecondsToFloor());
+    }
+
+    @Test
+    void followsChangeOfTrend() {
+        MemoryForecast f = new MemoryForecast(1, TimeUnit.MINUTES);
+        long available = 4 * GB;
+        long t = 0;
+        for (; t < 3600; t++) {
+            available += 1 << 20; // rising
+            f.add(t * 1000, new MemoryUsage(8 * GB, available, 0, 0));
+        }
+        assertEquals(Long.MAX_VALUE, f.estimate(Resource.PHYSICAL_MEMORY).getSecondsToFloor());
+        for (; t < 3600 + 600; t++) {
+            available -= 10 << 20; // now falling fast
+            f.add(t * 1000, new MemoryUsage(8 * GB, available, 0, 0));
+        }
+        Estimate e = f.estimate(Resource.PHYSICAL_MEMORY);
+        assertEquals(-(10 << 20), e.getSlope(), (10 << 20) * 0.01);
+        assertEquals(available / (10 << 20), e.getSecondsToFloor(), 5);
+        assertEquals(1, e.getConfidence(), 1e-9);
+        // there is no swap to run out of
+        assertEquals(-1, f.estimate(Resource.SWAP).getSecondsToFloor());
+    }
+
+    @Test
+    void notEnoughData() {
+        MemoryForecast f = new MemoryForecast(1, TimeUnit.MINUTES);
+        Estimate e = f.estimate(Resource.PHYSICAL_MEMORY);
+        assertEquals(-1, e.getSecondsToFloor());
+        assertEquals(-1, e.getTimestamp());
+        assertEquals(0.0, e.getConfidence());
+
+        f.add(0, new MemoryUsage(100, 50, 0, 0));
+        f.add(1000, new MemoryUsage(100, 40, 0, 0));
+        assertEquals(-1, f.estimate(Resource.PHYSICAL_MEMORY).getSecondsToFloor());
+        f.add(2000, new MemoryUsage(100, 30, 0, 0));
+        f.add(3000, new MemoryUsage(100, 20, 0, 0));
+        assertEquals(2, f.estimate(Resource.PHYSICAL_MEMORY).getSecondsToFloor());
+    }
+
+    @Test
+    void phi() {
+        assertEquals(0.5, MemoryForecast.phi(0), 1e-7);
+        assertEquals(0.975, MemoryForecast.phi(1.959964), 1e-6);
+        assertEquals(0.025, MemoryForecast.phi(-1.959964), 1e-6);
+    }
+}
@@ -0,0 +1,58 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MemoryHistoryTest {
+
+    @Test
+    void wrapsAround() {
+        MemoryHistory h = new MemoryHistory(4);
+        assertEquals(-1, h.getOldestTimestamp());
+        for (int t = 1; t <= 6; t++) {
+            h.add(t * 10, 100, t, 50, 50 - t);
+        }
+        assertEquals(4, h.size());
+        assertEquals(30, h.getOldestTimestamp());
+        assertEquals(60, h.getNewestTimestamp());
+
+        List<Long> seen = new ArrayList<>();
+        assertEquals(4, h.forEach((ts, tp, ap, ts2, as) -> {
+            assertEquals(ts / 10, ap);
+            assertEquals(50 - ts / 10, as);
+            seen.add(ts);
+        }));
+        assertEquals(List.of(30L, 40L, 50L, 60L), seen);
+    }
+
+    @Test
+    void timeWindow() {
+        MemoryHistory h = new MemoryHistory(100);
+        for (int t = 0; t < 250; t++) {
+            h.add(t, new MemoryUsage(1, t, 1, 1));
+        }
+        assertEquals(100, h.count(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(10, h.count(200, 210));
+        assertEquals(0, h.count(0, 150));
+        assertEquals(50, h.count(120, 200));
+
+        long[] sum = new long[1];
+        assertEquals(3, h.forEach(247, 1000, (ts, tp, ap, ts2, as) -> sum[0] += ap));
+        assertEquals(247 + 248 + 249, sum[0]);
+    }
+
+    @Test
+    void clockGoesBackwards() {
+        MemoryHistory h = new MemoryHistory(10);
+        h.add(100, 1, 1, 1, 1);
+        h.add(50, 2, 2, 2, 2);
+        assertEquals(100, h.getNewestTimestamp());
+        assertEquals(2, h.count(100, 101));
+
+        h.clear();
+        assertEquals(0, h.size());
+    }
+}
@@ -0,0 +1,129 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MemoryMonitorStatsTest {
+
+    @TempDir
+    File tmp;
+
+    /**
+     * Stats are shared by the whole JVM, so only differences can be checked.
+     */
+    private static final class Before {
+        final MemoryMonitorStats s;
+        final long calls, failures, timeouts, noData, processes, bytes;
+
+        Before(MemoryMonitorStats s) {
+            this.s = s;
+            calls = s.getCalls();
+            failures = s.getFailures();
+            timeouts = s.getTimeouts();
+            noData = s.getNoData();
+            processes = s.getProcessesSpawned();
+            bytes = s.getBytesParsed();
+        }
+    }
+
+    @Test
+    void procMemInfo() throws IOException {
+        File f = new File(tmp, "meminfo");
+        String content = "MemTotal: 1000 kB\nMemFree: 500 kB\n";
+        Files.writeString(f.toPath(), content, StandardCharsets.US_ASCII);
+        File empty = new File(tmp, "empty");
+        Files.writeString(empty.toPath(), "Nothing: 1\n", StandardCharsets.US_ASCII);
+
+        Before b = new Before(MemoryMonitorStats.of(ProcMemInfo.class));
+        new ProcMemInfo(f).monitor();
+        new ProcMemInfo(f).monitor();
+        assertThrows(NoDataException.class, () -> new ProcMemInfo(empty).monitor());
+        assertThrows(IOException.class, () -> new ProcMemInfo(new File(tmp, "missing")).monitor());
+
+        assertEquals(4, b.s.getCalls() - b.calls);
+        assertEquals(2, b.s.getFailures() - b.failures);
+        assertEquals(1, b.s.getNoData() - b.noData);
+        assertEquals(0, b.s.getTimeouts() - b.timeouts);
+        assertEquals(content.length() * 2 + 11, b.s.getBytesParsed() - b.bytes);
+        assertTrue(b.s.getMaxLatencyNanos() > 0);
+        assertSame(b.s, MemoryMonitorStats.all().get("ProcMemInfo"));
+    }
+
+    @Test
+    void commands() throws IOException {
+        assumeFalse(File.pathSeparatorChar == ';', "Windows cannot run this test");
+        MemoryMonitorStats s = MemoryMonitorStats.of(Top.class);
+        Before b = new Before(s);
+        assertEquals("hello", CommandRunner.run(10, TimeUnit.SECONDS, s, r -> r.readLine(), "echo", "hello"));
+        assertEquals(1, s.getProcessesSpawned() - b.processes);
+        assertEquals(6, s.getBytesParsed() - b.bytes);
+    }
+
+    @Test
+    void failures() {
+        MemoryMonitorStats s = MemoryMonitorStats.of(Solaris.class);
+        Before b = new Before(s);
+        s.failed(new CommandTimeoutException("top", 1, TimeUnit.SECONDS));
+        s.failed(new NoDataException());
+        s.failed(new IOException());
+        assertEquals(3, s.getFailures() - b.failures);
+        assertEquals(1, s.getTimeouts() - b.timeouts);
+        assertEquals(1, s.getNoData() - b.noData);
+    }
+
+    @Test
+    void time() throws IOException {
+        MemoryMonitorStats s = MemoryMonitorStats.of(Windows.class);
+        Before b = new Before(s);
+        assertEquals("ok", s.time(() -> "ok"));
+        assertThrows(IllegalStateException.class, () -> s.time(() -> {
+            throw new IllegalStateException();
+        }));
+        assertThrows(NoDataException.class, () -> s.time(() -> {
+            throw new NoDataException();
+        }));
+        assertEquals(3, s.getCalls() - b.calls);
+        assertEquals(2, s.getFailures() - b.failures);
+        assertEquals(1, s.getNoData() - b.noData);
+    }
+
+    @Test
+    void histogram() {
+        MemoryMonitorStats s = MemoryMonitorStats.of(new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() {
+                return null;
+            }
+        }.getClass());
+        assertEquals(0, s.getLatencyNanos(0.5));
+        assertEquals(0, s.getMeanLatencyNanos());
+
+        long now = System.nanoTime();
+        for (int i = 0; i < 98; i++) {
+            s.record(now - 1000); // bucket [512, 1024) or later, as time passes
+        }
+        s.record(now - 1_000_000_000L);
+        s.record(now - 4_000_000_000L);
+        assertEquals(100, s.getCalls());
+
+        long[] h = s.getLatencyHistogram();
+        assertEquals(1, h[63 - Long.numberOfLeadingZeros(4_000_000_000L)]);
+        assertTrue(s.getLatencyNanos(0.5) < 1_000_000_000L);
+        assertTrue(s.getLatencyNanos(0.99) >= 1_000_000_000L);
+        assertTrue(s.getLatencyNanos(1) >= 4_000_000_000L);
+        assertEquals(s.getMaxLatencyNanos(), s.getLatencyNanos(1));
+        assertTrue(s.getMeanLatencyNanos() >= 50_000_000L);
+        assertThrows(IllegalArgumentException.class, () -> s.getLatencyNanos(1.5));
+    }
+}
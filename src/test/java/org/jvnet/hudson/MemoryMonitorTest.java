@@ -1,16 +1,33 @@
 package org.jvnet.hudson;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * @author Kohsuke Kawaguchi
  */
 class MemoryMonitorTest {
 
+    @TempDir
+    File tmp;
+
     @Test
     void monitor() throws IOException {
         MemoryUsage data = MemoryMonitor.get().monitor();
@@ -24,6 +41,142 @@ class MemoryMonitorTest {
         System.out.println(data);
     }
 
+    @Test
+    void probePrefersHigherPriority() throws Exception {
+        FakeProvider slow = new FakeProvider(300, 500, false);
+        FakeProvider failing = new FakeProvider(200, 0, true);
+        FakeProvider fast = new FakeProvider(100, 0, false);
+        File f = new File(tmp, "cache.properties");
+        long start = System.nanoTime();
+        MemoryMonitor m = MemoryMonitor.probe(Arrays.asList(slow, failing, fast), 10000, new ProviderCache(f));
+        assertSame(slow.monitor, m);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(FakeProvider.class.getName(), new ProviderCache(f).get());
+    }
+
+    @Test
+    void probeDeadline() throws Exception {
+        FakeProvider hung = new FakeProvider(300, Long.MAX_VALUE, false);
+        FakeProvider fast = new FakeProvider(100, 0, false);
+        long start = System.nanoTime();
+        MemoryMonitor m = MemoryMonitor.probe(Arrays.asList(hung, fast), 200, new ProviderCache(null));
+        assertSame(fast.monitor, m);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        // the loser got cancelled
+        assertTrue(hung.interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void probeNothingWorks() {
+        assertNull(MemoryMonitor.probe(Arrays.asList(new FakeProvider(1, 0, true)), 1000, new ProviderCache(null)));
+    }
+
+    @Test
+    void monitorAsync() throws Exception {
+        MemoryMonitor m = new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() {
+                return new MemoryUsage(4, 3, 2, 1);
+            }
+        };
+        assertEquals(3, m.monitorAsync().get(10, TimeUnit.SECONDS).availablePhysicalMemory);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> new MemoryMonitor() {
+                    @Override
+                    public MemoryUsage monitor() throws IOException {
+                        throw new IOException("fake");
+                    }
+                }
+                .monitorAsync()
+                .get(10, TimeUnit.SECONDS));
+        assertEquals("fake", e.getCause().getMessage());
+    }
+
+    @Test
+    void monitorAsyncInline() throws Exception {
+        File meminfo = new File(tmp, "meminfo");
+        Files.write(meminfo.toPath(), "MemTotal: 2 kB\nMemFree: 1 kB\n".getBytes(StandardCharsets.US_ASCII));
+        CompletableFuture<MemoryUsage> f = new ProcMemInfo(meminfo).monitorAsync(r -> {
+            throw new AssertionError("should not be used");
+        });
+        assertTrue(f.isDone());
+        assertEquals(2048, f.get().totalPhysicalMemory);
+    }
+
+    @Test
+    void cancelKillsCommand() throws Exception {
+        assumeFalse(isWindows(), "Windows cannot run this test");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        MemoryMonitor m = new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() throws IOException {
+                started.countDown();
+                try {
+                    return CommandRunner.run(r -> {
+                        r.readLine();
+                        return null;
+                    }, "sleep", "30");
+                } catch (InterruptedIOException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+        };
+        CompletableFuture<MemoryUsage> f = m.monitorAsync();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(f.cancel(false));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ProcessHandle.current().children().anyMatch(ProcessHandle::isAlive)) {
+            assertTrue(System.nanoTime() < deadline, "'sleep' left behind");
+            Thread.sleep(50);
+        }
+    }
+
+    private static final class FakeProvider extends MemoryMonitorProvider {
+        private final int priority;
+        private final long delay;
+        private final boolean fail;
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final MemoryMonitor monitor = new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() {
+                return new MemoryUsage(1, 1, 1, 1);
+            }
+        };
+
+        FakeProvider(int priority, long delay, boolean fail) {
+            this.priority = priority;
+            this.delay = delay;
+            this.fail = fail;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public boolean isApplicable() {
+            return true;
+        }
+
+        @Override
+        public MemoryMonitor create() throws IOException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new IOException(e);
+            }
+            if (fail) {
+                throw new IOException("fake");
+            }
+            return monitor;
+        }
+    }
+
     private static boolean isWindows() {
         return File.pathSeparatorChar == ';';
     }
@@ -0,0 +1,181 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MemoryPressureMonitorTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void parse() throws IOException {
+        File f = write(
+                "some avg10=1.25 avg60=0.50 avg300=0.07 total=1234567\n"
+                        + "full avg10=0.00 avg60=12.00 avg300=100.00 total=89\n");
+        try (MemoryPressureMonitor m = new MemoryPressureMonitor(f)) {
+            MemoryPressure p = m.read();
+            assertEquals(1.25, p.someAvg10, 0.0001);
+            assertEquals(0.50, p.someAvg60, 0.0001);
+            assertEquals(0.07, p.someAvg300, 0.0001);
+            assertEquals(1234567, p.someTotal);
+            assertEquals(0, p.fullAvg10, 0.0001);
+            assertEquals(12, p.fullAvg60, 0.0001);
+            assertEquals(100, p.fullAvg300, 0.0001);
+            assertEquals(89, p.fullTotal);
+            assertEquals(89, p.getTotal(true));
+        }
+    }
+
+    @Test
+    void someOnly() throws IOException {
+        try (MemoryPressureMonitor m =
+                new MemoryPressureMonitor(write("some avg10=0.00 avg60=0.00 avg300=0.00 total=5\n"))) {
+            MemoryPressure p = m.read();
+            assertEquals(5, p.someTotal);
+            assertEquals(-1, p.fullTotal);
+            assertEquals(-1, p.fullAvg10, 0);
+        }
+    }
+
+    @Test
+    void garbage() throws IOException {
+        try (MemoryPressureMonitor m = new MemoryPressureMonitor(write("what\n"))) {
+            assertThrows(IOException.class, m::read);
+        }
+        try (MemoryPressureMonitor m = new MemoryPressureMonitor(write("some avg10=x total=1\n"))) {
+            assertThrows(IOException.class, m::read);
+        }
+    }
+
+    @Test
+    void invalidThresholds() throws IOException {
+        try (MemoryPressureMonitor m = new MemoryPressureMonitor(write(""))) {
+            assertThrows(IllegalArgumentException.class, () -> m.watch(false, 1, 100, TimeUnit.MILLISECONDS, p -> {}));
+            assertThrows(IllegalArgumentException.class, () -> m.watch(false, 2, 1, TimeUnit.SECONDS, p -> {}));
+        }
+    }
+
+    @Test
+    void fallbackToReading() throws Exception {
+        File f = write("some avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+        BlockingQueue<MemoryPressure> events = new LinkedBlockingQueue<>();
+        BlockingQueue<MemoryPressureMonitor.Watch> checks = new LinkedBlockingQueue<>();
+        try (MemoryPressureMonitor m = new MemoryPressureMonitor(f, false, checks::add)) {
+            MemoryPressureMonitor.Watch w = m.watch(false, 100, 500, TimeUnit.MILLISECONDS, events::add);
+            assertFalse(w.isEventDriven());
+
+            // the first check only records the total
+            awaitCheck(checks, w);
+            write("some avg10=0.00 avg60=0.00 avg300=0.00 total=50000\n");
+            awaitCheck(checks, w);
+            // below the threshold
+            assertTrue(events.isEmpty());
+
+            write("some avg10=9.00 avg60=0.00 avg300=0.00 total=250000\n");
+            MemoryPressure p = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(p);
+            assertEquals(250000, p.someTotal);
+
+            // a watch with a threshold that won't be crossed tells us when the file has been read again
+            MemoryPressureMonitor.Watch other = m.watch(false, 1, 1, TimeUnit.SECONDS, events::add);
+            awaitCheck(checks, other);
+            w.close();
+            write("some avg10=9.00 avg60=0.00 avg300=0.00 total=950000\n");
+            awaitCheck(checks, other);
+            awaitCheck(checks, other);
+            assertTrue(events.isEmpty());
+        }
+    }
+
+    @Test
+    void closeWaitsForMonitorThread() throws Exception {
+        File f = write("some avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+        BlockingQueue<MemoryPressureMonitor.Watch> checks = new LinkedBlockingQueue<>();
+        MemoryPressureMonitor m = new MemoryPressureMonitor(f, false, checks::add);
+        MemoryPressureMonitor.Watch w = m.watch(false, 100, 500, TimeUnit.MILLISECONDS, p -> {});
+        awaitCheck(checks, w);
+        Thread t = monitorThread(f);
+        m.close();
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    void closeFromListener() throws Exception {
+        File f = write("some avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+        MemoryPressureMonitor m = new MemoryPressureMonitor(f, false, w -> {});
+        CountDownLatch closed = new CountDownLatch(1);
+        m.watch(false, 100, 500, TimeUnit.MILLISECONDS, p -> {
+            try {
+                m.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            closed.countDown();
+        });
+        Thread t = monitorThread(f);
+        write("some avg10=9.00 avg60=0.00 avg300=0.00 total=250000\n");
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        t.join(5000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    void system() throws Exception {
+        MemoryPressureMonitor m = MemoryPressureMonitor.detect();
+        assumeTrue(m != null, "PSI unavailable");
+        try {
+            System.out.println(m.getFile() + ": " + m.read());
+            MemoryPressureMonitor.Watch w = m.watch(true, 2, 2, TimeUnit.SECONDS, p -> {});
+            System.out.println("event driven: " + w.isEventDriven());
+            Thread.sleep(600);
+            w.close();
+        } finally {
+            m.close();
+        }
+    }
+
+    /**
+     * Waits until the monitor thread has read the file for the given watch, after any check that came before.
+     */
+    private static void awaitCheck(BlockingQueue<MemoryPressureMonitor.Watch> checks, MemoryPressureMonitor.Watch w)
+            throws InterruptedException {
+        checks.clear();
+        MemoryPressureMonitor.Watch c;
+        do {
+            c = checks.poll(5, TimeUnit.SECONDS);
+            assertNotNull(c, "not checked");
+        } while (c != w);
+    }
+
+    private static Thread monitorThread(File f) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("MemoryPressureMonitor for " + f)) {
+                return t;
+            }
+        }
+        throw new AssertionError("no monitor thread");
+    }
+
+    private File write(String content) throws IOException {
+        File f = new File(tmp, "memory.pressure");
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return f;
+    }
+}
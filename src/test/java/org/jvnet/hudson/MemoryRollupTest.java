@@ -0,0 +1,112 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.MemoryRollup.Bucket;
+import org.jvnet.hudson.MemoryRollup.Field;
+import org.jvnet.hudson.MemoryRollup.Resolution;
+import org.jvnet.hudson.MemoryRollup.Summary;
+
+class MemoryRollupTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Test
+    void dipsSurvive() {
+        MemoryRollup r = new MemoryRollup(60, 24, 7);
+        for (long t = 0; t < 2 * HOUR; t += 1000) {
+            // a brief dip to 100MB in the middle of the first hour
+            long available = t >= 30 * MINUTE && t < 30 * MINUTE + 5000 ? 100_000_000 : 4_000_000_000L;
+            r.add(t, new MemoryUsage(8_000_000_000L, available, 0, 0));
+        }
+
+        List<Bucket> hours = r.getBuckets(Resolution.HOUR);
+        assertEquals(2, hours.size());
+        Summary s = hours.get(0).get(Field.AVAILABLE_PHYSICAL_MEMORY);
+        assertEquals(3600, s.getCount());
+        assertEquals(100_000_000, s.getMin());
+        assertEquals(4_000_000_000L, s.getMax());
+        assertEquals(4_000_000_000L, s.getP50(), 4_000_000_000L * 0.05);
+        assertEquals(HOUR, hours.get(1).getStart());
+        assertEquals(2 * HOUR, hours.get(1).getEnd());
+        assertEquals(4_000_000_000L, hours.get(1).get(Field.AVAILABLE_PHYSICAL_MEMORY).getMin());
+
+        // zeros don't need the sketch
+        Summary swap = hours.get(0).get(Field.AVAILABLE_SWAP_SPACE);
+        assertEquals(0, swap.getP1());
+        assertEquals(0, swap.getP99());
+
+        // only the last hour of minutes is kept
+        List<Bucket> minutes = r.getBuckets(Resolution.MINUTE);
+        assertEquals(60, minutes.size());
+        assertEquals(HOUR, minutes.get(0).getStart());
+        assertEquals(1, r.getBuckets(Resolution.DAY).size());
+        assertEquals(2, r.getBuckets(Resolution.MINUTE, HOUR, HOUR + 2 * MINUTE).size());
+    }
+
+    @Test
+    void unknownValues() {
+        MemoryRollup r = new MemoryRollup(1, 1, 1);
+        r.add(0, new MemoryUsage(100, 50, -1, -1));
+        Summary s = r.getBuckets(Resolution.MINUTE).get(0).get(Field.TOTAL_SWAP_SPACE);
+        assertEquals(0, s.getCount());
+        assertEquals(-1, s.getMin());
+        assertEquals(-1, s.getP50());
+    }
+
+    @Test
+    void tooOld() {
+        MemoryRollup r = new MemoryRollup(2, 2, 2);
+        r.add(10 * MINUTE, new MemoryUsage(1, 1, 1, 1));
+        // same slot as minute 10, but older. still counts for the hour
+        r.add(8 * MINUTE, new MemoryUsage(1, 2, 1, 1));
+        assertEquals(1, r.getBuckets(Resolution.MINUTE).get(0).get(Field.AVAILABLE_PHYSICAL_MEMORY).getMax());
+        assertEquals(2, r.getBuckets(Resolution.HOUR).get(0).get(Field.AVAILABLE_PHYSICAL_MEMORY).getMax());
+    }
+
+    /**
+     * Checks the quantiles against the exact ones, with values that span up to 100 times.
+     */
+    @Test
+    void quantiles() {
+        Random rnd = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            MemoryRollup r = new MemoryRollup(1, 1, 1);
+            int n = 1 + rnd.nextInt(5000);
+            long[] values = new long[n];
+            double spread = Math.exp(rnd.nextDouble() * Math.log(100));
+            for (int i = 0; i < n; i++) {
+                values[i] = (long) (1_000_000 * Math.pow(spread, rnd.nextDouble()));
+                r.add(i, new MemoryUsage(-1, values[i], -1, -1));
+            }
+            Arrays.sort(values);
+            Summary s = r.getBuckets(Resolution.DAY).get(0).get(Field.AVAILABLE_PHYSICAL_MEMORY);
+            assertEquals(values[0], s.getMin());
+            assertEquals(values[n - 1], s.getMax());
+            assertEquals(Arrays.stream(values).average().getAsDouble(), s.getMean(), s.getMean() * 1e-9);
+            check(values, 0.01, s.getP1());
+            check(values, 0.5, s.getP50());
+            check(values, 0.99, s.getP99());
+        }
+    }
+
+    private static void check(long[] sorted, double q, long actual) {
+        long expected = sorted[(int) Math.max(0, Math.ceil(q * sorted.length) - 1)];
+        // 64 bins 2% apart cover a range of 3.5x, and every merge doubles the error.
+        // where the pairs fall might take one more merge than that
+        double ratio = (double) sorted[sorted.length - 1] / sorted[0];
+        double error = 0.02;
+        for (double covered = Math.pow(1.02, 64); covered < ratio; covered *= covered) {
+            error = error * 2 + error * error;
+        }
+        assertTrue(
+                Math.abs(actual - expected) <= expected * error + 1,
+                "q=" + q + " expected " + expected + " got " + actual + " within " + error);
+    }
+}
@@ -0,0 +1,104 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class MemorySamplerTest {
+
+    @Test
+    void sampling() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        MemoryMonitor counting = new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() throws IOException {
+                int n = calls.incrementAndGet();
+                if (n == 2) {
+                    throw new IOException("transient failure");
+                }
+                return new MemoryUsage(100, n, 10, 5);
+            }
+        };
+
+        try (MemorySampler sampler = new MemorySampler(counting, 10, TimeUnit.MILLISECONDS)) {
+            assertNull(sampler.getLatest());
+            sampler.start();
+            while (calls.get() < 4) {
+                Thread.sleep(5);
+            }
+            MemorySampler.Sample s = sampler.getLatest();
+            assertNotNull(s);
+            assertEquals(100, s.usage.totalPhysicalMemory);
+            assertSame(sampler.getLatest().usage, sampler.monitor());
+        }
+
+        // no more sampling after close
+        int n = calls.get();
+        Thread.sleep(50);
+        assertEquals(n, calls.get());
+    }
+
+    @Test
+    void synchronousBeforeFirstSample() throws IOException {
+        MemoryMonitor fixed = new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() {
+                return new MemoryUsage(1, 2, 3, 4);
+            }
+        };
+        try (MemorySampler sampler = new MemorySampler(fixed, 1, TimeUnit.HOURS)) {
+            assertEquals(2, sampler.monitor().availablePhysicalMemory);
+            assertNotNull(sampler.getLatest());
+        }
+    }
+
+    @Test
+    void callerWaitsForSamplingThread() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        MemoryMonitor slow = new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() throws IOException {
+                calls.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return new MemoryUsage(1, 2, 3, 4);
+            }
+        };
+        try (MemorySampler sampler = new MemorySampler(slow, 1, TimeUnit.HOURS)) {
+            sampler.start();
+            entered.await();
+
+            CompletableFuture<MemoryUsage> caller = new CompletableFuture<>();
+            Thread t = new Thread(() -> {
+                try {
+                    caller.complete(sampler.monitor());
+                } catch (IOException e) {
+                    caller.completeExceptionally(e);
+                }
+            });
+            t.start();
+            while (t.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            // the caller gets the sample that the sampling thread took, rather than taking another one
+            assertSame(caller.get(10, TimeUnit.SECONDS), sampler.getLatest().usage);
+            assertEquals(1, calls.get());
+        }
+    }
+}
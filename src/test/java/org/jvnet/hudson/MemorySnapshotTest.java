@@ -0,0 +1,73 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class MemorySnapshotTest {
+
+    @Test
+    void take() throws IOException {
+        MemoryUsage host = new MemoryUsage(8L << 30, 4L << 30, 0, 0);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1 << 20);
+        MemorySnapshot s = MemorySnapshot.take(new MemoryMonitor() {
+            @Override
+            public MemoryUsage monitor() {
+                return host;
+            }
+        });
+        System.out.println(s);
+        assertSame(host, s.host);
+        assertTrue(s.heapUsed > 0);
+        assertTrue(s.heapCommitted >= s.heapUsed);
+        assertTrue(s.nonHeapUsed > 0);
+        assertTrue(s.codeCacheUsed > 0);
+        assertTrue(s.codeCacheUsed <= s.nonHeapUsed);
+        assertTrue(s.directCapacity >= direct.capacity());
+        assertTrue(s.directMax > 0);
+        assertTrue(s.getJvmCommitted() >= s.heapCommitted + s.nonHeapCommitted);
+        assertTrue(Math.abs(System.currentTimeMillis() - s.timestamp) < 60000);
+    }
+
+    @Test
+    void headroom() {
+        long mb = 1024 * 1024;
+        MemorySnapshot s = new MemorySnapshot(
+                0,
+                new MemoryUsage(8192 * mb, 1000 * mb, 0, 0),
+                100 * mb,
+                300 * mb,
+                1000 * mb,
+                50 * mb,
+                60 * mb,
+                -1,
+                10 * mb,
+                12 * mb,
+                240 * mb,
+                5 * mb,
+                6 * mb,
+                100 * mb,
+                0,
+                0);
+        assertEquals(900 * mb, s.getHeapHeadroom());
+        assertEquals(700 * mb, s.getHeapUncommitted());
+        assertEquals(94 * mb, s.getDirectHeadroom());
+        assertEquals(366 * mb, s.getJvmCommitted());
+        // 1000 available, of which the heap may still take 700 and direct buffers 94
+        assertEquals(206 * mb, s.getHostHeadroom());
+    }
+
+    @Test
+    void unknown() {
+        MemorySnapshot s = new MemorySnapshot(
+                0, new MemoryUsage(-1, -1, -1, -1), 1, 1, -1, 1, 1, -1, -1, -1, -1, -1, -1, -1, -1, -1);
+        assertEquals(-1, s.getHeapHeadroom());
+        assertEquals(-1, s.getHeapUncommitted());
+        assertEquals(-1, s.getDirectHeadroom());
+        assertEquals(-1, s.getHostHeadroom());
+    }
+}
@@ -0,0 +1,106 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MemoryUsageCodecTest {
+
+    @Test
+    void roundTrip() throws IOException {
+        for (MemoryUsage u : Arrays.asList(
+                new MemoryUsage(8L << 30, 5L << 30, 2L << 30, 2L << 30),
+                new MemoryUsage(-1, -1, -1, -1),
+                new MemoryUsage(0, 0, 0, 0),
+                new MemoryUsage(1, 3, -1, 0),
+                new MemoryUsage(Long.MAX_VALUE, Long.MIN_VALUE, -2, 12345),
+                extended())) {
+            assertSameValues(u, MemoryUsageCodec.decode(MemoryUsageCodec.encode(u)));
+        }
+    }
+
+    @Test
+    void compact() throws IOException {
+        MemoryUsage u = new MemoryUsage(16661336064L, 9032384512L, 2147479552L, 2147479552L);
+        byte[] data = MemoryUsageCodec.encode(u);
+        assertTrue(data.length <= 20, "took " + data.length + " bytes");
+
+        ByteArrayOutputStream java = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(java)) {
+            out.writeObject(u);
+        }
+        System.out.println(data.length + " bytes instead of " + java.size());
+        assertTrue(data.length * 4 < java.size());
+
+        // version, header, and one byte for each unknown value
+        assertEquals(6, MemoryUsageCodec.encode(new MemoryUsage(-1, -1, -1, -1)).length);
+    }
+
+    @Test
+    void batch() throws IOException {
+        List<MemoryUsage> samples = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            samples.add(i % 10 == 0 ? extended() : new MemoryUsage(8L << 30, (4L << 30) + i * 4096L, 0, 0));
+        }
+        ByteBuffer buf = MemoryUsageCodec.encodeBatch(samples);
+        assertEquals(0, buf.position());
+        List<MemoryUsage> decoded = MemoryUsageCodec.decodeBatch(buf);
+        assertFalse(buf.hasRemaining());
+        assertEquals(samples.size(), decoded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertSameValues(samples.get(i), decoded.get(i));
+        }
+
+        assertEquals(0, MemoryUsageCodec.decodeBatch(MemoryUsageCodec.encodeBatch(new ArrayList<>())).size());
+    }
+
+    @Test
+    void corrupt() {
+        byte[] data = MemoryUsageCodec.encode(new MemoryUsage(8L << 30, 5L << 30, 2L << 30, 2L << 30));
+        assertThrows(IOException.class, () -> MemoryUsageCodec.decode(Arrays.copyOf(data, data.length - 1)));
+        data[0] = 42;
+        assertThrows(IOException.class, () -> MemoryUsageCodec.decode(data));
+
+        // claims a billion samples
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.put(MemoryUsageCodec.VERSION);
+        MemoryUsageCodec.putVarLong(buf, 1000000000);
+        buf.flip();
+        assertThrows(IOException.class, () -> MemoryUsageCodec.decodeBatch(buf));
+    }
+
+    @Test
+    void varints() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        for (long v : new long[] {0, 1, 127, 128, 16383, 16384, Long.MAX_VALUE, -1, Long.MIN_VALUE}) {
+            buf.clear();
+            MemoryUsageCodec.putVarLong(buf, v);
+            assertEquals(MemoryUsageCodec.varLongSize(v), buf.position());
+            buf.flip();
+            assertEquals(v, MemoryUsageCodec.getVarLong(buf));
+            assertEquals(v, MemoryUsageCodec.unzigzag(MemoryUsageCodec.zigzag(v)));
+        }
+    }
+
+    static ExtendedMemoryUsage extended() {
+        return new ExtendedMemoryUsage(
+                6147400L * 1024, 5712972L * 1024, 0, 0, 5357076L * 1024, 1024, 2048, -1, 4096, 8192, 4096, 0, -1);
+    }
+
+    static void assertSameValues(MemoryUsage expected, MemoryUsage actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertTrue(
+                Arrays.equals(MemoryUsageCodec.values(expected), MemoryUsageCodec.values(actual)),
+                expected + " vs " + actual);
+    }
+}
@@ -0,0 +1,214 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class MemoryUsageStreamTest {
+
+    private final List<MemoryUsage> samples = new ArrayList<>();
+
+    MemoryUsageStreamTest() {
+        Random r = new Random(42);
+        long avail = 4L << 30;
+        for (int i = 0; i < 500; i++) {
+            if (i % 3 != 0) {
+                avail += (r.nextInt(2000) - 1000) * 4096L;
+            }
+            samples.add(
+                    i % 100 == 50
+                            ? MemoryUsageCodecTest.extended()
+                            : new MemoryUsage(8L << 30, avail, i < 250 ? -1 : 2L << 30, i < 250 ? -1 : 1L << 30));
+        }
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        byte[] data = encode(samples, 64);
+        List<MemoryUsage> decoded = decode(data);
+        assertEquals(samples.size(), decoded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            MemoryUsageCodecTest.assertSameValues(samples.get(i), decoded.get(i));
+        }
+        int full = MemoryUsageCodec.encodeBatch(samples).remaining();
+        System.out.println(data.length + " bytes, " + full + " as a batch");
+        assertTrue(data.length < full);
+    }
+
+    @Test
+    void unchangedIsSmall() throws IOException {
+        MemoryUsage u = new MemoryUsage(8L << 30, 4L << 30, 0, 0);
+        byte[] one = encode(List.of(u), 64);
+        byte[] two = encode(List.of(u, u), 64);
+        // magic, type, seq, length, empty mask, checksum
+        assertEquals(7, two.length - one.length);
+    }
+
+    @Test
+    void channel() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryUsageStream.Encoder e = new MemoryUsageStream.Encoder(Channels.newChannel(out), 16)) {
+            for (MemoryUsage u : samples) {
+                e.write(u);
+            }
+        }
+        MemoryUsageStream.Decoder d =
+                new MemoryUsageStream.Decoder(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        int n = 0;
+        while (d.read() != null) {
+            n++;
+        }
+        assertEquals(samples.size(), n);
+    }
+
+    @Test
+    void live() throws Exception {
+        PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out);
+        BlockingQueue<MemoryUsage> decoded = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            try (MemoryUsageStream.Decoder d = new MemoryUsageStream.Decoder(in)) {
+                MemoryUsage u;
+                while ((u = d.read()) != null) {
+                    decoded.add(u);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        List<MemoryUsage> sent = new ArrayList<>(samples.subList(0, 60));
+        // unchanged samples make the smallest frames
+        sent.add(samples.get(59));
+        sent.add(samples.get(59));
+        try (MemoryUsageStream.Encoder e = new MemoryUsageStream.Encoder(out, 16)) {
+            for (MemoryUsage u : sent) {
+                e.write(u);
+                e.flush();
+                // each frame is decoded as soon as it's written, without waiting for the next one
+                MemoryUsage r = decoded.poll(5, TimeUnit.SECONDS);
+                assertNotNull(r, "frame was not decoded");
+                MemoryUsageCodecTest.assertSameValues(u, r);
+            }
+        }
+        reader.join(5000);
+        assertTrue(decoded.isEmpty());
+    }
+
+    @Test
+    void corruption() throws IOException {
+        byte[] data = encode(samples, 10);
+        Random r = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            data[r.nextInt(data.length)] ^= (byte) (1 + r.nextInt(255));
+        }
+        assertSubsequence(decode(data), 300);
+    }
+
+    @Test
+    void lostFrames() throws IOException {
+        byte[] data = encode(samples, 10);
+        // cut a chunk out of the middle, like a dropped packet
+        byte[] cut = new byte[data.length - 300];
+        System.arraycopy(data, 0, cut, 0, 1000);
+        System.arraycopy(data, 1300, cut, 1000, data.length - 1300);
+
+        MemoryUsageStream.Decoder d = new MemoryUsageStream.Decoder(new ByteArrayInputStream(cut));
+        List<MemoryUsage> decoded = new ArrayList<>();
+        MemoryUsage u;
+        while ((u = d.read()) != null) {
+            decoded.add(u);
+        }
+        assertTrue(d.getSkippedFrames() > 0);
+        assertSubsequence(decoded, samples.size() - 50);
+    }
+
+    @Test
+    void garbageAndTruncation() throws IOException {
+        byte[] data = encode(samples.subList(0, 20), 64);
+        byte[] junk = new byte[100];
+        new Random(7).nextBytes(junk);
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        b.write(junk);
+        b.write(data, 0, data.length - 3);
+
+        MemoryUsageStream.Decoder d = new MemoryUsageStream.Decoder(new ByteArrayInputStream(b.toByteArray()));
+        for (int i = 0; i < 19; i++) {
+            MemoryUsageCodecTest.assertSameValues(samples.get(i), d.read());
+        }
+        assertNull(d.read());
+        assertNull(d.read());
+        assertTrue(d.getSkippedBytes() >= 100);
+    }
+
+    @Test
+    void requestKeyframe() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryUsageStream.Encoder e = new MemoryUsageStream.Encoder(out, 1000);
+        e.write(samples.get(0));
+        e.write(samples.get(1));
+        // the receiver reconnected, so whatever was written so far is gone
+        out.reset();
+        e.requestKeyframe();
+        e.write(samples.get(2));
+        e.write(samples.get(3));
+        List<MemoryUsage> decoded = decode(out.toByteArray());
+        assertEquals(2, decoded.size());
+        MemoryUsageCodecTest.assertSameValues(samples.get(3), decoded.get(1));
+    }
+
+    /**
+     * Checks that everything that was decoded is correct and in order, and that not too much got lost.
+     */
+    private void assertSubsequence(List<MemoryUsage> decoded, int min) {
+        assertTrue(decoded.size() >= min, "only " + decoded.size() + " decoded");
+        int j = 0;
+        for (MemoryUsage u : decoded) {
+            while (j < samples.size()
+                    && !Arrays.equals(MemoryUsageCodec.values(samples.get(j)), MemoryUsageCodec.values(u))) {
+                j++;
+            }
+            assertTrue(j < samples.size(), "Bogus sample " + u);
+            j++;
+        }
+    }
+
+    private static byte[] encode(List<MemoryUsage> samples, int keyframeInterval) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryUsageStream.Encoder e = new MemoryUsageStream.Encoder(out, keyframeInterval)) {
+            for (MemoryUsage u : samples) {
+                e.write(u);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<MemoryUsage> decode(byte[] data) throws IOException {
+        List<MemoryUsage> r = new ArrayList<>();
+        try (MemoryUsageStream.Decoder d = new MemoryUsageStream.Decoder(new ByteArrayInputStream(data))) {
+            MemoryUsage u;
+            while ((u = d.read()) != null) {
+                r.add(u);
+            }
+        }
+        return r;
+    }
+}
@@ -0,0 +1,166 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.MemoryWatermarks.Resource;
+import org.jvnet.hudson.MemoryWatermarks.Watermark;
+
+class MemoryWatermarksTest {
+
+    private final BlockingQueue<MemoryUsage> values = new LinkedBlockingQueue<>();
+
+    private final MemorySampler sampler = new MemorySampler(
+            new MemoryMonitor() {
+                @Override
+                public MemoryUsage monitor() throws IOException {
+                    try {
+                        return values.take();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            },
+            1,
+            TimeUnit.MILLISECONDS);
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+
+    @Test
+    void hysteresis() {
+        MemoryWatermarks w = new MemoryWatermarks(sampler);
+        MemoryWatermarks.Subscription s =
+                w.subscribe(Resource.PHYSICAL_MEMORY, Watermark.bytes(100), Watermark.bytes(200), new Recorder());
+
+        physical(w, 150);
+        physical(w, 99);
+        assertTrue(s.isLow());
+        // hovering around either watermark doesn't flap
+        physical(w, 101);
+        physical(w, 99);
+        physical(w, 200);
+        physical(w, 150);
+        physical(w, 201);
+        assertFalse(s.isLow());
+        physical(w, 199);
+        physical(w, 100);
+        physical(w, 50);
+        assertEquals(List.of("low 99", "recovered 201", "low 50"), events);
+    }
+
+    @Test
+    void percentOfTotal() {
+        MemoryWatermarks w = new MemoryWatermarks(sampler);
+        w.subscribe(Resource.SWAP, Watermark.percent(10), Watermark.percent(20), new Recorder());
+        swap(w, 1000, 150);
+        swap(w, 1000, 50);
+        // total shrank, so 50 is now 25%
+        swap(w, 200, 50);
+        // unknown values are ignored
+        swap(w, -1, -1);
+        swap(w, 200, 10);
+        assertEquals(List.of("low 50", "recovered 50", "low 10"), events);
+    }
+
+    @Test
+    void sharedSampling() throws Exception {
+        MemoryWatermarks w = new MemoryWatermarks(sampler);
+        w.subscribe(Resource.PHYSICAL_MEMORY, Watermark.bytes(100), Watermark.bytes(100), new Recorder());
+        MemoryWatermarks.Subscription second = w.subscribe(
+                Resource.PHYSICAL_MEMORY, Watermark.percent(50), Watermark.percent(60), new Recorder());
+        try (MemorySampler s = sampler.start()) {
+            values.add(new MemoryUsage(1000, 90, -1, -1));
+            await(2);
+            second.close();
+            values.add(new MemoryUsage(1000, 900, -1, -1));
+            await(3);
+            assertEquals(List.of("low 90", "low 90", "recovered 900"), events);
+
+            w.close();
+            values.add(new MemoryUsage(1000, 10, -1, -1));
+            values.add(new MemoryUsage(1000, 10, -1, -1));
+            while (!values.isEmpty()) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, events.size());
+        }
+    }
+
+    private void await(int n) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (events.size() < n) {
+            assertTrue(System.nanoTime() < deadline, "Timed out: " + events);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void invalid() {
+        assertThrows(IllegalArgumentException.class, () -> Watermark.percent(101));
+        assertThrows(IllegalArgumentException.class, () -> Watermark.percent(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> Watermark.bytes(-1));
+    }
+
+    @Test
+    void concurrentSamples() throws Exception {
+        MemoryWatermarks w = new MemoryWatermarks(sampler);
+        w.subscribe(Resource.PHYSICAL_MEMORY, Watermark.bytes(100), Watermark.bytes(200), new Recorder());
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 1000; j++) {
+                    physical(w, 50);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(List.of("low 50"), events);
+    }
+
+    private static void physical(MemoryWatermarks w, long available) {
+        w.onSample(new MemorySampler.Sample(new MemoryUsage(1000, available, -1, -1), 0));
+    }
+
+    private static void swap(MemoryWatermarks w, long total, long available) {
+        w.onSample(new MemorySampler.Sample(new MemoryUsage(-1, -1, total, available), 0));
+    }
+
+    private class Recorder implements MemoryWatermarks.Listener {
+        @Override
+        public void onLow(MemoryUsage usage) {
+            events.add("low " + available(usage));
+        }
+
+        @Override
+        public void onRecovered(MemoryUsage usage) {
+            events.add("recovered " + available(usage));
+        }
+
+        private long available(MemoryUsage usage) {
+            return Math.max(usage.availablePhysicalMemory, usage.availableSwapSpace);
+        }
+    }
+}
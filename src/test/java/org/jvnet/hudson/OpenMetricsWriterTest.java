@@ -0,0 +1,126 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class OpenMetricsWriterTest {
+
+    private static String render(OpenMetricsWriter w, MemorySampler.Sample s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.write(s, out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void basic() throws Exception {
+        String text = render(
+                new OpenMetricsWriter("node_"),
+                new MemorySampler.Sample(new MemoryUsage(8000000000L, 1234, 0, -1), 1700000000042L));
+        assertEquals(
+                "# TYPE node_physical_total_bytes gauge\n"
+                        + "# UNIT node_physical_total_bytes bytes\n"
+                        + "# HELP node_physical_total_bytes Total physical memory.\n"
+                        + "node_physical_total_bytes 8000000000\n"
+                        + "# TYPE node_physical_available_bytes gauge\n"
+                        + "# UNIT node_physical_available_bytes bytes\n"
+                        + "# HELP node_physical_available_bytes Physical memory available without swapping.\n"
+                        + "node_physical_available_bytes 1234\n"
+                        + "# TYPE node_swap_total_bytes gauge\n"
+                        + "# UNIT node_swap_total_bytes bytes\n"
+                        + "# HELP node_swap_total_bytes Total swap space.\n"
+                        + "node_swap_total_bytes 0\n"
+                        + "# TYPE node_sample_timestamp_seconds gauge\n"
+                        + "# UNIT node_sample_timestamp_seconds seconds\n"
+                        + "# HELP node_sample_timestamp_seconds When the sample was taken.\n"
+                        + "node_sample_timestamp_seconds 1700000000.042\n"
+                        + "# EOF\n",
+                text);
+    }
+
+    @Test
+    void extended() throws Exception {
+        String text = render(
+                new OpenMetricsWriter(),
+                new MemorySampler.Sample(new ExtendedMemoryUsage(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13), 0));
+        assertTrue(text.contains("\nmemory_physical_free_bytes 5\n"), text);
+        assertTrue(text.contains("\nmemory_writeback_bytes 13\n"), text);
+        assertTrue(text.contains("\nmemory_sample_timestamp_seconds 0.000\n"), text);
+        assertEquals(14, text.lines().filter(l -> l.startsWith("# TYPE")).count());
+    }
+
+    @Test
+    void renderedOncePerSample() {
+        OpenMetricsWriter w = new OpenMetricsWriter();
+        MemorySampler.Sample a = new MemorySampler.Sample(new MemoryUsage(1, 2, 3, 4), 1);
+        MemorySampler.Sample b = new MemorySampler.Sample(new MemoryUsage(1, 2, 3, 5), 2);
+        byte[] first = w.render(a);
+        assertSame(first, w.render(a));
+        byte[] second = w.render(b);
+        assertNotSame(first, second);
+        assertSame(second, w.render(b));
+    }
+
+    @Test
+    void invalidPrefix() {
+        assertThrows(IllegalArgumentException.class, () -> new OpenMetricsWriter("memory-"));
+    }
+
+    @Test
+    void exporter() throws Exception {
+        MemorySampler sampler = new MemorySampler(
+                new MemoryMonitor() {
+                    @Override
+                    public MemoryUsage monitor() {
+                        return new MemoryUsage(100, 50, 10, 5);
+                    }
+                },
+                1,
+                TimeUnit.HOURS);
+        try (MemoryMetricsExporter e =
+                new MemoryMetricsExporter(sampler, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            URL url = new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + e.getAddress().getPort() + "/metrics");
+
+            HttpURLConnection c = (HttpURLConnection) url.openConnection();
+            assertEquals(503, c.getResponseCode());
+            c.disconnect();
+
+            // takes the first sample
+            sampler.monitor();
+
+            c = (HttpURLConnection) url.openConnection();
+            c.setRequestProperty("Accept", "application/openmetrics-text;version=1.0.0,text/plain;q=0.5");
+            assertEquals(200, c.getResponseCode());
+            assertEquals(OpenMetricsWriter.CONTENT_TYPE, c.getContentType());
+            String body;
+            try (InputStream in = c.getInputStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            }
+            assertTrue(body.contains("\nmemory_physical_available_bytes 50\n"), body);
+            assertTrue(body.endsWith("# EOF\n"), body);
+
+            c = (HttpURLConnection) url.openConnection();
+            assertEquals(200, c.getResponseCode());
+            assertTrue(c.getContentType().startsWith("text/plain; version=0.0.4"), c.getContentType());
+            c.getInputStream().close();
+
+            c = (HttpURLConnection) url.openConnection();
+            c.setRequestMethod("POST");
+            assertEquals(405, c.getResponseCode());
+        }
+    }
+}
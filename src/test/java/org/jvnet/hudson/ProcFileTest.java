@@ -0,0 +1,94 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProcFileTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void meminfo() throws IOException {
+        File f = write(
+                "meminfo",
+                "MemTotal:        6147400 kB\n" + "MemFree:         5357076 kB\n"
+                        + "MemAvailable:    5712972 kB\n"
+                        + "SwapTotal:             0 kB\n"
+                        + "HugePages_Total:       0\n");
+        try (ProcFile p = new ProcFile(f, "MemFree:", "MemTotal:", "SwapFree:", "HugePages_Total:")) {
+            long[] v = new long[4];
+            assertTrue(p.read(v));
+            assertArrayEquals(new long[] {5357076L * 1024, 6147400L * 1024, -1, 0}, v);
+
+            // re-reading the same channel picks up changes
+            write("meminfo", "MemTotal: 2 MB\nMemFree: 1 GB\n");
+            assertTrue(p.read(v));
+            assertArrayEquals(new long[] {1024L * 1024 * 1024, 2L * 1024 * 1024, -1, -1}, v);
+        }
+    }
+
+    @Test
+    void spaceSeparatedKeys() throws IOException {
+        File f = write("memory.stat", "inactive_file_extra 1\ninactive_file 4096\nactive_file 8192\n");
+        try (ProcFile p = new ProcFile(f, "inactive_file", "active")) {
+            long[] v = new long[2];
+            assertTrue(p.read(v));
+            assertArrayEquals(new long[] {4096, -1}, v);
+        }
+    }
+
+    @Test
+    void noKeysFound() throws IOException {
+        try (ProcFile p = new ProcFile(write("x", "Foo: 1\n"), "Bar")) {
+            assertFalse(p.read(new long[1]));
+        }
+    }
+
+    @Test
+    void largeFile() throws IOException {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            b.append("Filler").append(i).append(": ").append(i).append(" kB\n");
+        }
+        b.append("Last: 42 kB\n");
+        try (ProcFile p = new ProcFile(write("big", b.toString()), "Last")) {
+            long[] v = new long[1];
+            assertTrue(p.read(v));
+            assertEquals(42 * 1024, v[0]);
+        }
+    }
+
+    @Test
+    void singleValue() throws IOException {
+        try (ProcFile p = new ProcFile(write("memory.max", "max\n"))) {
+            assertEquals(Long.MAX_VALUE, p.readValue());
+        }
+        try (ProcFile p = new ProcFile(write("memory.current", "123456\n"))) {
+            assertEquals(123456, p.readValue());
+        }
+    }
+
+    @Test
+    void garbage() throws IOException {
+        try (ProcFile p = new ProcFile(write("bad", "MemTotal: lots\n"), "MemTotal")) {
+            assertThrows(IOException.class, () -> p.read(new long[1]));
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        File f = new File(tmp, name);
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return f;
+    }
+}
@@ -0,0 +1,68 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProcMemInfoTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void extended() throws IOException {
+        ExtendedMemoryUsage m = new ProcMemInfo(write("MemTotal:        6147400 kB\n"
+                        + "MemFree:         5357076 kB\n"
+                        + "MemAvailable:    5712972 kB\n"
+                        + "Buffers:           68420 kB\n"
+                        + "Cached:           486616 kB\n"
+                        + "SwapCached:            0 kB\n"
+                        + "SwapTotal:       1048576 kB\n"
+                        + "SwapFree:         524288 kB\n"
+                        + "Dirty:               108 kB\n"
+                        + "Writeback:             4 kB\n"
+                        + "Shmem:              9288 kB\n"
+                        + "Slab:              47104 kB\n"
+                        + "SReclaimable:      29352 kB\n"))
+                .monitor();
+        assertEquals(6147400L * 1024, m.totalPhysicalMemory);
+        assertEquals(5712972L * 1024, m.availablePhysicalMemory);
+        assertEquals(1048576L * 1024, m.totalSwapSpace);
+        assertEquals(524288L * 1024, m.availableSwapSpace);
+        assertEquals(5357076L * 1024, m.freePhysicalMemory);
+        assertEquals(68420L * 1024, m.buffers);
+        assertEquals(486616L * 1024, m.cached);
+        assertEquals(0, m.swapCached);
+        assertEquals(9288L * 1024, m.shmem);
+        assertEquals(47104L * 1024, m.slab);
+        assertEquals(29352L * 1024, m.slabReclaimable);
+        assertEquals(108L * 1024, m.dirty);
+        assertEquals(4L * 1024, m.writeback);
+    }
+
+    @Test
+    void oldKernelWithoutMemAvailable() throws IOException {
+        ExtendedMemoryUsage m = new ProcMemInfo(write("MemTotal: 2048 kB\nMemFree: 1024 kB\n")).monitor();
+        assertEquals(1024L * 1024, m.availablePhysicalMemory);
+        assertEquals(1024L * 1024, m.freePhysicalMemory);
+        assertEquals(-1, m.cached);
+    }
+
+    @Test
+    void noData() throws IOException {
+        ProcMemInfo p = new ProcMemInfo(write("Nothing: 1 kB\n"));
+        assertThrows(IOException.class, p::monitor);
+    }
+
+    private File write(String content) throws IOException {
+        File f = new File(tmp, "meminfo");
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return f;
+    }
+}
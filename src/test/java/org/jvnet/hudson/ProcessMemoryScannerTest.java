@@ -0,0 +1,119 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProcessMemoryScannerTest {
+
+    @TempDir
+    File proc;
+
+    @Test
+    void tree() throws IOException {
+        process(1, 0, "VmRSS: 100 kB\nVmSwap: 1 kB\n", 50);
+        process(10, 1, "VmRSS: 200 kB\nVmSwap: 0 kB\n", 150);
+        process(11, 10, "VmRSS: 300 kB\nVmSwap: 2 kB\n", -1);
+        process(12, 10, "VmRSS: 400 kB\nVmSwap: 4 kB\n", 350);
+        // kernel thread
+        process(20, 2, "", -1);
+        // exited before we got to read it
+        new File(proc, "30").mkdirs();
+        new File(proc, "self").mkdirs();
+        Files.write(new File(proc, "meminfo").toPath(), new byte[0]);
+
+        ProcessMemoryScanner.Snapshot s;
+        try (ProcessMemoryScanner scanner = new ProcessMemoryScanner(proc, true)) {
+            s = scanner.scan();
+        }
+        assertEquals(5, s.getProcesses().size());
+        assertNull(s.get(30));
+
+        ProcessMemoryScanner.ProcessMemory p = s.get(12);
+        assertEquals(10, p.ppid);
+        assertEquals(400 * 1024, p.rss);
+        assertEquals(350 * 1024, p.pss);
+        assertEquals(4 * 1024, p.swap);
+        assertEquals(-1, s.get(11).pss);
+        assertEquals(-1, s.get(20).rss);
+        assertEquals(2, s.getChildren(10).size());
+
+        ProcessMemoryScanner.ProcessMemory t = s.getTree(10);
+        assertEquals(3, t.processes);
+        assertEquals(900 * 1024, t.rss);
+        assertEquals(500 * 1024, t.pss);
+        assertEquals(6 * 1024, t.swap);
+
+        assertEquals(4, s.getTree(1).processes);
+        assertEquals(1, s.getTree(20).processes);
+        assertEquals(-1, s.getTree(20).rss);
+        assertNull(s.getTree(99));
+    }
+
+    @Test
+    void withoutPss() throws IOException {
+        process(1, 0, "VmRSS: 100 kB\n", 50);
+        try (ProcessMemoryScanner scanner = new ProcessMemoryScanner(proc, false)) {
+            assertEquals(-1, scanner.scan().get(1).pss);
+        }
+    }
+
+    @Test
+    void manyProcesses() throws IOException {
+        for (int i = 1; i <= 2000; i++) {
+            process(i, i / 2, "VmRSS: 1 kB\n", 1);
+        }
+        try (ProcessMemoryScanner scanner = new ProcessMemoryScanner(proc, true)) {
+            ProcessMemoryScanner.Snapshot s = scanner.scan();
+            assertEquals(2000, s.getProcesses().size());
+            assertEquals(2000, s.getTree(1).processes);
+            assertEquals(2000 * 1024, s.getTree(1).pss);
+            // again with the same threads
+            assertEquals(2000, scanner.scan().getProcesses().size());
+        }
+        assertThrows(IllegalStateException.class, () -> {
+            ProcessMemoryScanner scanner = new ProcessMemoryScanner(proc, true);
+            scanner.close();
+            scanner.scan();
+        });
+    }
+
+    @Test
+    void self() throws IOException {
+        assumeTrue(new File("/proc/self/status").exists(), "Linux only");
+        int pid = (int) ProcessHandle.current().pid();
+        ProcessMemoryScanner.Snapshot s;
+        try (ProcessMemoryScanner scanner = new ProcessMemoryScanner(true)) {
+            s = scanner.scan();
+        }
+        ProcessMemoryScanner.ProcessMemory me = s.get(pid);
+        assertNotNull(me);
+        assertTrue(me.rss > 0);
+        System.out.println(me + " of " + s.getProcesses().size() + " processes");
+        assertTrue(s.getTree(pid).processes >= 1);
+    }
+
+    private void process(int pid, int ppid, String status, long pss) throws IOException {
+        File dir = new File(proc, Integer.toString(pid));
+        dir.mkdirs();
+        Files.write(
+                new File(dir, "status").toPath(),
+                ("Name:\tfake\nPid:\t" + pid + "\nPPid:\t" + ppid + "\n" + status).getBytes(StandardCharsets.US_ASCII));
+        if (pss >= 0) {
+            Files.write(
+                    new File(dir, "smaps_rollup").toPath(),
+                    ("00400000-7fff [rollup]\nRss: 1 kB\nPss: " + pss + " kB\nPss_Anon: 1 kB\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProviderCacheTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void roundTrip() {
+        File f = new File(tmp, "sub/dir/cache.properties");
+        assertNull(new ProviderCache(f).get());
+
+        new ProviderCache(f).put(ProcMemInfo.Provider.class.getName());
+        assertTrue(f.exists());
+        assertEquals(ProcMemInfo.Provider.class.getName(), new ProviderCache(f).get());
+
+        new ProviderCache(f).put(Top.Provider.class.getName());
+        assertEquals(Top.Provider.class.getName(), new ProviderCache(f).get());
+        assertEquals(1, tmp.toPath().resolve("sub/dir").toFile().list().length);
+    }
+
+    @Test
+    void disabled() {
+        ProviderCache c = new ProviderCache(null);
+        c.put(Top.Provider.class.getName());
+        assertNull(c.get());
+    }
+
+    @Test
+    void corrupt() throws IOException {
+        File f = new File(tmp, "cache.properties");
+        Files.write(f.toPath(), "\\u00zz".getBytes(StandardCharsets.ISO_8859_1));
+        ProviderCache c = new ProviderCache(f);
+        assertNull(c.get());
+        c.put(Top.Provider.class.getName());
+        assertEquals(Top.Provider.class.getName(), c.get());
+    }
+
+    @Test
+    void providers() {
+        List<MemoryMonitorProvider> all = MemoryMonitorProvider.all();
+        assertEquals(6, all.size());
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(all.get(i - 1).getPriority() > all.get(i).getPriority());
+        }
+        assertEquals(Windows.Provider.class, all.get(0).getClass());
+        assertEquals(Solaris.Provider.class, all.get(all.size() - 1).getClass());
+        assertFalse(new Aix.Provider().isApplicable() && new Windows.Provider().isApplicable());
+    }
+}
@@ -0,0 +1,36 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class SolarisTest {
+
+    private final Solaris solaris = new Solaris();
+
+    @Test
+    void prtdiag() throws IOException {
+        assertEquals(2L * 1024 * 1024 * 1024, solaris.parsePrtdiag(open("prtdiag.txt")));
+    }
+
+    @Test
+    void vmstat() throws IOException {
+        assertEquals(1659904L * 1024, solaris.parseVmstat(open("vmstat.txt")));
+    }
+
+    @Test
+    void swap() throws IOException {
+        assertArrayEquals(
+                new long[] {(982080L + 6014528L) * 1024, 6014528L * 1024}, solaris.parseSwap(open("swap-s.txt")));
+    }
+
+    private static BufferedReader open(String name) {
+        return new BufferedReader(new InputStreamReader(
+                SolarisTest.class.getResourceAsStream("solaris/" + name), StandardCharsets.UTF_8));
+    }
+}
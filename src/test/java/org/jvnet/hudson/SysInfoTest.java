@@ -0,0 +1,29 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+class SysInfoTest {
+
+    @Test
+    void compareWithProcMemInfo() throws IOException {
+        assumeTrue(new SysInfo.Provider().isApplicable(), "Linux only");
+        MemoryUsage s = new SysInfo().monitor();
+        System.out.println(s);
+        assertTrue(s.totalPhysicalMemory > 0);
+        assertTrue(s.availablePhysicalMemory > 0);
+        assertTrue(s.availablePhysicalMemory <= s.totalPhysicalMemory);
+
+        assumeTrue(new File("/proc/meminfo").exists(), "No /proc/meminfo");
+        ExtendedMemoryUsage p = new ProcMemInfo().monitor();
+        assertEquals(p.totalPhysicalMemory, s.totalPhysicalMemory);
+        assertEquals(p.totalSwapSpace, s.totalSwapSpace);
+        // both are MemFree, and can't have drifted apart by much in between
+        assertTrue(Math.abs(p.freePhysicalMemory - s.availablePhysicalMemory) < s.totalPhysicalMemory / 10);
+    }
+}
@@ -0,0 +1,125 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Feeds multi-screen output from the samples in <tt>top/*.txt</tt> to {@link TopStream}.
+ */
+class TopStreamTest {
+
+    @Test
+    void publishesEveryScreen() throws IOException {
+        TopStream stream = new TopStream(1, TimeUnit.SECONDS);
+        Recorder in = new Recorder(stream, new StringReader(load("debian") + load("freebsd") + load("macos-10.6")));
+        assertTrue(stream.read(in));
+
+        assertEquals(3, in.published.size());
+        assertUsage(in.published.get(0), 4076113920L, 731004928L, 4223660032L, 4098764800L);
+        assertUsage(in.published.get(1), -1, 417792L, 268435456L, 227540992L);
+        assertUsage(in.published.get(2), 4292870144L, 52428800L, 6442450944L, 819986432L);
+        assertEquals(in.published.get(2), stream.getLatest());
+    }
+
+    @Test
+    void processTableIsSkipped() throws IOException {
+        TopStream stream = new TopStream(1, TimeUnit.SECONDS);
+        // a process named like a header line must not replace the figures of the screen it appears in
+        String screen = load("debian") + "99999 root  20  0  0  0  0 S  0.0  0.0  0:00.00 Mem: 1k total\n";
+        Recorder in = new Recorder(stream, new StringReader(screen + screen));
+        assertTrue(stream.read(in));
+
+        assertEquals(2, in.published.size());
+        for (MemorySampler.Sample s : in.published) {
+            assertUsage(s, 4076113920L, 731004928L, 4223660032L, 4098764800L);
+        }
+    }
+
+    @Test
+    void keepsLastGoodScreen() throws IOException {
+        TopStream stream = new TopStream(1, TimeUnit.SECONDS);
+        Recorder in = new Recorder(stream, new StringReader(load("debian") + "top - truncated\n"));
+        assertTrue(stream.read(in));
+
+        assertEquals(1, in.published.size());
+        assertUsage(stream.getLatest(), 4076113920L, 731004928L, 4223660032L, 4098764800L);
+    }
+
+    @Test
+    void noData() throws IOException {
+        TopStream stream = new TopStream(1, TimeUnit.SECONDS);
+        assertFalse(stream.read(new BufferedReader(new StringReader("top: unknown option -- l\nusage: top [-b]\n"))));
+        assertNull(stream.getLatest());
+    }
+
+    @Test
+    void live() throws IOException {
+        assumeFalse(File.pathSeparatorChar == ';', "Windows cannot run this test");
+        try (TopStream stream = new TopStream(1, TimeUnit.SECONDS)) {
+            assertNotNull(stream.monitor());
+            assertNotNull(stream.getLatest());
+        }
+    }
+
+    @Test
+    void closedBeforeFirstScreen() {
+        TopStream stream = new TopStream(1, TimeUnit.SECONDS);
+        stream.close();
+        // doesn't wait for a screen that will never come
+        assertThrows(IOException.class, stream::monitor);
+    }
+
+    private static void assertUsage(
+            MemorySampler.Sample s, long total, long available, long totalSwap, long availableSwap) {
+        MemoryUsage m = s.usage;
+        assertEquals(total, m.totalPhysicalMemory, "total");
+        assertEquals(available, m.availablePhysicalMemory, "available");
+        assertEquals(totalSwap, m.totalSwapSpace, "totalSwap");
+        assertEquals(availableSwap, m.availableSwapSpace, "availableSwap");
+    }
+
+    private static String load(String name) throws IOException {
+        try (InputStream in = TopStreamTest.class.getResourceAsStream("top/" + name + ".txt")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Records every sample {@link TopStream} publishes while it reads.
+     */
+    private static final class Recorder extends BufferedReader {
+        private final TopStream stream;
+        private final List<MemorySampler.Sample> published = new ArrayList<>();
+
+        Recorder(TopStream stream, Reader in) {
+            super(in);
+            this.stream = stream;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            MemorySampler.Sample latest = stream.getLatest();
+            if (latest != null && (published.isEmpty() || published.get(published.size() - 1) != latest)) {
+                published.add(latest);
+            }
+            return super.readLine();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jvnet.hudson;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parses the samples in the Javadoc of {@link Top}.
+ */
+class TopTest {
+
+    @Test
+    void solaris() throws IOException {
+        // the "free mem" pattern picks up "free swap" on this line, which is how it has always been
+        assertParses("solaris", 3824156672L, 2146435072L, 2146435072L, 2146435072L);
+    }
+
+    @Test
+    void ubuntu() throws IOException {
+        assertParses("ubuntu", 4154777600L, 704729088L, 4293586944L, 3622838272L);
+    }
+
+    @Test
+    void debian() throws IOException {
+        assertParses("debian", 4076113920L, 731004928L, 4223660032L, 4098764800L);
+    }
+
+    @Test
+    void unixtop() throws IOException {
+        assertParses("unixtop", 33554432L, 741376L, 419430400L, 385875968L);
+    }
+
+    @Test
+    void freebsd() throws IOException {
+        assertParses("freebsd", -1, 417792L, 268435456L, 227540992L);
+    }
+
+    @Test
+    void macOs104() throws IOException {
+        assertParses("macos-10.4", 2143499008L, 210763776L, -1, -1);
+    }
+
+    @Test
+    void macOs106() throws IOException {
+        assertParses("macos-10.6", 4292870144L, 52428800L, 6442450944L, 819986432L);
+    }
+
+    @Test
+    void escapeSequences() throws IOException {
+        MemoryUsage m = new Top().parse(List.of("\u001B[1mMem:\u001B[0m   4057400k total,  688212k free"));
+        assertNotNull(m);
+        assertEquals(4057400L * 1024, m.totalPhysicalMemory);
+        assertEquals(688212L * 1024, m.availablePhysicalMemory);
+    }
+
+    @Test
+    void noData() throws IOException {
+        assertNull(new Top().parse(List.of("top: unknown option -- l", "usage: top [-b]")));
+    }
+
+    private static void assertParses(String name, long total, long available, long totalSwap, long availableSwap)
+            throws IOException {
+        MemoryUsage m = new Top().parse(load(name));
+        assertNotNull(m, name);
+        assertEquals(total, m.totalPhysicalMemory, "total");
+        assertEquals(available, m.availablePhysicalMemory, "available");
+        assertEquals(totalSwap, m.totalSwapSpace, "totalSwap");
+        assertEquals(availableSwap, m.availableSwapSpace, "availableSwap");
+    }
+
+    /**
+     * Loads the first 16 lines of a sample, just like {@link Top} reads them.
+     */
+    static List<String> load(String name) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = TopTest.class.getResourceAsStream("top/" + name + ".txt");
+                BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null && lines.size() < 16) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}